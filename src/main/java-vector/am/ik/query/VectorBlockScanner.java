@@ -0,0 +1,43 @@
+package am.ik.query;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API implementation of {@link DelimiterIndex.BlockScanner}. Only loaded
+ * reflectively when {@code jdk.incubator.vector} is available. Compiled apart from the
+ * main sources, so that they and their javadoc do not need the incubator module.
+ */
+final class VectorBlockScanner implements DelimiterIndex.BlockScanner {
+
+	private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+
+	@Override
+	public int find(char[] chars, int from, int to) {
+		int i = from;
+		int bound = from + SPECIES.loopBound(to - from);
+		for (; i < bound; i += SPECIES.length()) {
+			ShortVector v = ShortVector.fromCharArray(SPECIES, chars, i);
+			VectorMask<Short> candidates = v.compare(VectorOperators.UNSIGNED_LE, (short) ' ')
+				.or(v.eq((short) '"'))
+				.or(v.eq((short) '-'))
+				.or(v.eq((short) '('))
+				.or(v.eq((short) ')'))
+				.or(v.eq((short) '='))
+				.or(v.compare(VectorOperators.GE, (short) CharClass.FIRST_NON_ASCII_WHITESPACE)
+					.and(v.compare(VectorOperators.LE, (short) CharClass.LAST_NON_ASCII_WHITESPACE)));
+			if (candidates.anyTrue()) {
+				return i + candidates.firstTrue();
+			}
+		}
+		for (; i < to; i++) {
+			if (DelimiterIndex.isCandidate(chars[i])) {
+				return i;
+			}
+		}
+		return to;
+	}
+
+}
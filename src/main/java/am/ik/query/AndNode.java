@@ -0,0 +1,24 @@
+package am.ik.query;
+
+import java.util.List;
+
+/**
+ * Matches when all of its children match. Children are never {@link AndNode}s themselves.
+ */
+public record AndNode(List<Node> children) implements Node {
+
+	public AndNode {
+		children = List.copyOf(children);
+	}
+
+	@Override
+	public String value() {
+		return "and";
+	}
+
+	@Override
+	public String toString() {
+		return AndNode.class.getSimpleName();
+	}
+
+}
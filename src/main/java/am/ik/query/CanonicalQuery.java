@@ -0,0 +1,9 @@
+package am.ik.query;
+
+/**
+ * The canonical form of a query as built by {@link QueryCanonicalizer}, with a 64-bit
+ * fingerprint that equivalent queries share.
+ */
+public record CanonicalQuery(RootNode root, long fingerprint) {
+
+}
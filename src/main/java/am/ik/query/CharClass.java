@@ -0,0 +1,88 @@
+package am.ik.query;
+
+/**
+ * Character classes used by the lexers. ASCII characters are looked up in a table, the
+ * rest falls back to {@link Character}.
+ */
+final class CharClass {
+
+	static final int WHITESPACE = 1;
+
+	static final int QUOTE = 1 << 1;
+
+	static final int HYPHEN = 1 << 2;
+
+	static final int PAREN = 1 << 3;
+
+	static final int EQUALS = 1 << 4;
+
+	static final int LETTER_OR_DIGIT = 1 << 5;
+
+	/**
+	 * Characters that end a plain keyword.
+	 */
+	static final int KEYWORD_END = WHITESPACE | QUOTE | HYPHEN | PAREN | EQUALS;
+
+	/**
+	 * Characters that end a {@code key=value} or hyphenated keyword.
+	 */
+	static final int WORD_END = WHITESPACE | PAREN;
+
+	private static final byte[] ASCII = new byte[128];
+
+	/**
+	 * Non-ASCII whitespace only exists between these two characters, so most non-ASCII
+	 * text, including CJK, never reaches {@link Character#isWhitespace(char)}.
+	 */
+	static final char FIRST_NON_ASCII_WHITESPACE = '\u1680';
+
+	static final char LAST_NON_ASCII_WHITESPACE = '\u3000';
+
+	static {
+		for (char c = 0; c < ASCII.length; c++) {
+			int flags = 0;
+			if (Character.isWhitespace(c)) {
+				flags |= WHITESPACE;
+			}
+			if (Character.isLetterOrDigit(c)) {
+				flags |= LETTER_OR_DIGIT;
+			}
+			ASCII[c] = (byte) flags;
+		}
+		ASCII['"'] |= QUOTE;
+		ASCII['-'] |= HYPHEN;
+		ASCII['('] |= PAREN;
+		ASCII[')'] |= PAREN;
+		ASCII['='] |= EQUALS;
+	}
+
+	private CharClass() {
+	}
+
+	/**
+	 * Flags of {@code c}, except {@link #LETTER_OR_DIGIT} which is only reported for
+	 * ASCII. Use {@link #isLetterOrDigit(char)} for the full check.
+	 */
+	static int of(char c) {
+		if (c < 128) {
+			return ASCII[c];
+		}
+		if (c < FIRST_NON_ASCII_WHITESPACE || c > LAST_NON_ASCII_WHITESPACE) {
+			return 0;
+		}
+		return Character.isWhitespace(c) ? WHITESPACE : 0;
+	}
+
+	static int ascii(byte b) {
+		return ASCII[b];
+	}
+
+	static boolean isWhitespace(char c) {
+		return (of(c) & WHITESPACE) != 0;
+	}
+
+	static boolean isLetterOrDigit(char c) {
+		return (c < 128) ? (ASCII[c] & LETTER_OR_DIGIT) != 0 : Character.isLetterOrDigit(c);
+	}
+
+}
@@ -0,0 +1,158 @@
+package am.ik.query;
+
+import java.nio.CharBuffer;
+
+/**
+ * Finds delimiter candidates in a long input, copying it block by block as the lexer
+ * advances. A candidate is a character that may be whitespace, a quote, a hyphen, a paren
+ * or an equals sign. Candidates are confirmed with {@link CharClass}, so the lexer
+ * produces exactly the same tokens with or without an index.
+ * <p>
+ * Blocks are searched with the Vector API when the {@code jdk.incubator.vector} module is
+ * available (e.g. {@code --add-modules jdk.incubator.vector}). Without it, lexers do not
+ * use an index at all.
+ */
+final class DelimiterIndex {
+
+	/**
+	 * Inputs shorter than this are scanned char by char.
+	 */
+	static final int MIN_LENGTH = 1024;
+
+	static final int BLOCK_SIZE = 4096;
+
+	static final DelimiterIndex NONE = new DelimiterIndex("", 0, 0, new ScalarBlockScanner());
+
+	private static final BlockScanner VECTOR_SCANNER = loadVectorScanner();
+
+	private CharSequence input;
+
+	private int end;
+
+	private final BlockScanner scanner;
+
+	private final char[] block;
+
+	private int blockStart;
+
+	private int blockLength;
+
+	DelimiterIndex(CharSequence input, int begin, int end, BlockScanner scanner) {
+		this.input = input;
+		this.end = end;
+		this.scanner = scanner;
+		this.block = new char[Math.min(BLOCK_SIZE, end - begin)];
+		this.blockStart = begin;
+	}
+
+	/**
+	 * Returns an index over {@code [begin, end)} of {@code input}, or {@link #NONE} when
+	 * the range is short or vectorized scanning is unavailable.
+	 */
+	static DelimiterIndex of(CharSequence input, int begin, int end) {
+		if (VECTOR_SCANNER instanceof ScalarBlockScanner || end - begin < MIN_LENGTH) {
+			return NONE;
+		}
+		return new DelimiterIndex(input, begin, end, VECTOR_SCANNER);
+	}
+
+	/**
+	 * Returns an index over {@code [begin, end)} of {@code input} like
+	 * {@link #of(CharSequence, int, int)}, reusing this index and its block if possible.
+	 */
+	DelimiterIndex reset(CharSequence input, int begin, int end) {
+		if (this == NONE || end - begin < MIN_LENGTH) {
+			return of(input, begin, end);
+		}
+		this.input = input;
+		this.end = end;
+		this.blockStart = begin;
+		this.blockLength = 0;
+		return this;
+	}
+
+	static boolean isVectorized() {
+		return !(VECTOR_SCANNER instanceof ScalarBlockScanner);
+	}
+
+	/**
+	 * Returns the first candidate at or after {@code from}, or the end of the range.
+	 */
+	int next(int from) {
+		while (from < this.end) {
+			if (from < this.blockStart || from >= this.blockStart + this.blockLength) {
+				load(from);
+			}
+			int found = this.scanner.find(this.block, from - this.blockStart, this.blockLength);
+			if (found < this.blockLength) {
+				return this.blockStart + found;
+			}
+			from = this.blockStart + this.blockLength;
+		}
+		return this.end;
+	}
+
+	private void load(int from) {
+		int length = Math.min(this.block.length, this.end - from);
+		CharSequence input = this.input;
+		if (input instanceof String) {
+			((String) input).getChars(from, from + length, this.block, 0);
+		}
+		else if (input instanceof CharBuffer) {
+			((CharBuffer) input).get(from, this.block, 0, length);
+		}
+		else {
+			for (int i = 0; i < length; i++) {
+				this.block[i] = input.charAt(from + i);
+			}
+		}
+		this.blockStart = from;
+		this.blockLength = length;
+	}
+
+	static boolean isCandidate(char c) {
+		return c <= ' ' || c == '"' || c == '-' || c == '(' || c == ')' || c == '='
+				|| (c >= CharClass.FIRST_NON_ASCII_WHITESPACE && c <= CharClass.LAST_NON_ASCII_WHITESPACE);
+	}
+
+	private static BlockScanner loadVectorScanner() {
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+				&& !Boolean.getBoolean("am.ik.query.vector.disabled")) {
+			try {
+				return Class.forName("am.ik.query.VectorBlockScanner")
+					.asSubclass(BlockScanner.class)
+					.getDeclaredConstructor()
+					.newInstance();
+			}
+			catch (ReflectiveOperationException | LinkageError e) {
+				// fall through to scalar lexing
+			}
+		}
+		return new ScalarBlockScanner();
+	}
+
+	/**
+	 * Returns the index of the first delimiter candidate in {@code chars[from, to)}, or
+	 * {@code to} when there is none.
+	 */
+	interface BlockScanner {
+
+		int find(char[] chars, int from, int to);
+
+	}
+
+	static final class ScalarBlockScanner implements BlockScanner {
+
+		@Override
+		public int find(char[] chars, int from, int to) {
+			for (int i = from; i < to; i++) {
+				if (isCandidate(chars[i])) {
+					return i;
+				}
+			}
+			return to;
+		}
+
+	}
+
+}
@@ -0,0 +1,62 @@
+package am.ik.query;
+
+/**
+ * A problem found by {@link QueryParser#parseLenient()} or
+ * {@link QueryParser#parse(ParseLimits)} at {@code offset} in the source.
+ */
+public record Diagnostic(Kind kind, int offset) {
+
+	public enum Kind {
+
+		/**
+		 * A phrase without a closing quote, reported at its opening quote.
+		 */
+		UNTERMINATED_QUOTE(false),
+
+		/**
+		 * A {@code )} without a matching {@code (}.
+		 */
+		UNMATCHED_CLOSE_PAREN(false),
+
+		/**
+		 * A {@code (} that is never closed, reported at the outermost one.
+		 */
+		UNCLOSED_GROUP(false),
+
+		/**
+		 * A {@code (} beyond the maximum depth, whose group is merged into its parent.
+		 */
+		NESTING_TOO_DEEP(false),
+
+		/**
+		 * Input beyond {@link ParseLimits#maxInputLength()}, reported at the limit.
+		 */
+		INPUT_TOO_LONG(true),
+
+		/**
+		 * The first token beyond {@link ParseLimits#maxTokens()}.
+		 */
+		TOO_MANY_TOKENS(true),
+
+		/**
+		 * The first term beyond {@link ParseLimits#maxTerms()}.
+		 */
+		TOO_MANY_TERMS(true);
+
+		private final boolean rejecting;
+
+		Kind(boolean rejecting) {
+			this.rejecting = rejecting;
+		}
+
+		/**
+		 * Whether the query is rejected rather than parsed with the problem worked
+		 * around.
+		 */
+		public boolean isRejecting() {
+			return this.rejecting;
+		}
+
+	}
+
+}
@@ -0,0 +1,37 @@
+package am.ik.query;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@code name=value} term, split once when it is lexed. Names are
+ * {@link String#intern() interned}, so they can be compared by identity with string
+ * literals, e.g. {@code node.name() == "status"}.
+ */
+public record FieldNode(String name, String value) implements Node {
+
+	/**
+	 * Interned names seen so far, which are found faster than by {@link String#intern()}.
+	 * Names beyond the first few are interned without being cached, so that arbitrary
+	 * input does not grow the cache.
+	 */
+	private static final Map<String, String> NAMES = new ConcurrentHashMap<>();
+
+	private static final int MAX_CACHED_NAMES = 1024;
+
+	public FieldNode {
+		name = intern(name);
+	}
+
+	private static String intern(String name) {
+		String interned = NAMES.get(name);
+		if (interned == null) {
+			interned = name.intern();
+			if (NAMES.size() < MAX_CACHED_NAMES) {
+				NAMES.putIfAbsent(interned, interned);
+			}
+		}
+		return interned;
+	}
+
+}
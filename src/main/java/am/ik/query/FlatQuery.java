@@ -0,0 +1,341 @@
+package am.ik.query;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Compact, immutable form of a parsed query for keeping many of them in memory. The tree
+ * is stored in parallel primitive arrays indexed by node, with groups and terms numbered
+ * in document order from the root at {@link #ROOT}, and all term values share a single
+ * {@code char[]}.
+ * <p>
+ * Nodes are navigated by index with {@link #firstChild(int)}, {@link #nextSibling(int)}
+ * and {@link #parent(int)}, which allocate nothing. {@link #root()} returns the same tree
+ * as {@link QueryParser#parseQuery(CharSequence)} as a frozen {@link RootNode} view that
+ * creates nodes as they are first accessed.
+ */
+public final class FlatQuery {
+
+	/**
+	 * Index of the root group.
+	 */
+	public static final int ROOT = 0;
+
+	/**
+	 * Returned by navigation methods when there is no such node.
+	 */
+	public static final int NONE = -1;
+
+	private static final byte GROUP = -1;
+
+	/**
+	 * {@link TokenType#code() Code} of each term's type, or {@link #GROUP}.
+	 */
+	private final byte[] types;
+
+	private final int[] parents;
+
+	private final int[] firstChildren;
+
+	private final int[] nextSiblings;
+
+	/**
+	 * Start of each node's value in {@link #values}, followed by the end of the last one,
+	 * so that a value ends where the next one starts.
+	 */
+	private final int[] valueOffsets;
+
+	private final char[] values;
+
+	private FlatQuery(Builder builder) {
+		int size = builder.size;
+		this.types = Arrays.copyOf(builder.types, size);
+		this.parents = Arrays.copyOf(builder.parents, size);
+		this.firstChildren = Arrays.copyOf(builder.firstChildren, size);
+		this.nextSiblings = Arrays.copyOf(builder.nextSiblings, size);
+		this.valueOffsets = Arrays.copyOf(builder.valueOffsets, size + 1);
+		this.valueOffsets[size] = builder.valuesLength;
+		this.values = Arrays.copyOf(builder.values, builder.valuesLength);
+	}
+
+	public static FlatQuery parse(CharSequence query) {
+		return parse(new QueryLexer(query));
+	}
+
+	/**
+	 * Parses {@code tokens} into the tree {@link QueryParser#parse()} would build. Groups
+	 * are closed through the parent links, so nesting depth costs no stack.
+	 */
+	public static FlatQuery parse(TokenCursor tokens) {
+		Builder builder = new Builder();
+		int group = builder.add(GROUP, NONE, NONE, "");
+		int last = NONE;
+		while (tokens.advance()) {
+			TokenType type = tokens.type();
+			switch (type) {
+				case PHRASE:
+				case EXCLUDE:
+				case KEYWORD:
+				case FIELD:
+				case OR:
+					last = builder.add(type.code(), group, last, tokens.value());
+					break;
+				case EXCLUDED_FIELD:
+					last = builder.add(TokenType.EXCLUDE.code(), group, last, tokens.value());
+					break;
+				case LPAREN:
+					group = builder.add(GROUP, group, last, "");
+					last = NONE;
+					break;
+				case RPAREN:
+					if (group == ROOT) {
+						return new FlatQuery(builder);
+					}
+					last = group;
+					group = builder.parents[group];
+					break;
+				case WHITESPACE:
+					break;
+			}
+		}
+		return new FlatQuery(builder);
+	}
+
+	/**
+	 * Flattens {@code root}, a tree of terms and groups like those built by
+	 * {@link QueryParser#parseQuery(CharSequence)}, so that trees that were already
+	 * parsed, e.g. by a {@link QueryCache} or a {@link NodeFactory}, are not parsed
+	 * again. Nesting depth costs no stack.
+	 * @throws IllegalArgumentException if the tree has nodes of
+	 * {@link QueryParser#parseBooleanQuery(CharSequence)}
+	 */
+	public static FlatQuery of(RootNode root) {
+		Builder builder = new Builder();
+		int group = builder.add(GROUP, NONE, NONE, "");
+		int last = NONE;
+		Deque<Iterator<Node>> iterators = new ArrayDeque<>();
+		iterators.push(root.children().iterator());
+		while (!iterators.isEmpty()) {
+			Iterator<Node> children = iterators.peek();
+			if (!children.hasNext()) {
+				iterators.pop();
+				last = group;
+				group = builder.parents[group];
+				continue;
+			}
+			Node child = children.next();
+			if (child instanceof RootNode) {
+				group = builder.add(GROUP, group, last, "");
+				last = NONE;
+				iterators.push(((RootNode) child).children().iterator());
+			}
+			else if (child instanceof TokenNode) {
+				TokenNode token = (TokenNode) child;
+				last = builder.add(token.type().code(), group, last, token.value());
+			}
+			else if (child instanceof FieldNode) {
+				FieldNode field = (FieldNode) child;
+				last = builder.add(TokenType.FIELD.code(), group, last, field.name() + "=" + field.value());
+			}
+			else {
+				throw new IllegalArgumentException("Only terms and groups can be flattened: " + child);
+			}
+		}
+		return new FlatQuery(builder);
+	}
+
+	/**
+	 * Number of nodes, including the root.
+	 */
+	public int size() {
+		return this.types.length;
+	}
+
+	public boolean isGroup(int node) {
+		return this.types[node] == GROUP;
+	}
+
+	/**
+	 * Type of the term at {@code node}. Groups have no type.
+	 */
+	public TokenType type(int node) {
+		byte type = this.types[node];
+		if (type == GROUP) {
+			throw new IllegalArgumentException("Node " + node + " is a group");
+		}
+		return TokenType.ofCode(type);
+	}
+
+	public int parent(int node) {
+		return this.parents[node];
+	}
+
+	public int firstChild(int node) {
+		return this.firstChildren[node];
+	}
+
+	public int nextSibling(int node) {
+		return this.nextSiblings[node];
+	}
+
+	/**
+	 * Length of the value of {@code node}, which is empty for groups.
+	 */
+	public int valueLength(int node) {
+		Objects.checkIndex(node, size());
+		return this.valueOffsets[node + 1] - this.valueOffsets[node];
+	}
+
+	public char valueCharAt(int node, int index) {
+		Objects.checkIndex(index, valueLength(node));
+		return this.values[this.valueOffsets[node] + index];
+	}
+
+	public boolean valueEquals(int node, CharSequence value) {
+		int length = valueLength(node);
+		if (value.length() != length) {
+			return false;
+		}
+		int offset = this.valueOffsets[node];
+		for (int i = 0; i < length; i++) {
+			if (this.values[offset + i] != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Value of {@code node}, which is the whole {@code name=value} text of a
+	 * {@link TokenType#FIELD} term.
+	 */
+	public String value(int node) {
+		return new String(this.values, this.valueOffsets[node], valueLength(node));
+	}
+
+	/**
+	 * Frozen view of the tree. Each child is created on its first access and kept by the
+	 * view of its group, so callers that only need a few nodes should navigate by index.
+	 */
+	public RootNode root() {
+		return group(ROOT);
+	}
+
+	private RootNode group(int node) {
+		return new RootNode(new Children(node), true);
+	}
+
+	private Node node(int node) {
+		if (isGroup(node)) {
+			return group(node);
+		}
+		String value = value(node);
+		if (type(node) == TokenType.FIELD) {
+			int separator = value.indexOf('=');
+			return new FieldNode(value.substring(0, separator), value.substring(separator + 1));
+		}
+		return new TokenNode(type(node), value);
+	}
+
+	/**
+	 * Children of a group, which are created on first access and then kept, so that the
+	 * group is frozen like a parsed one and caches its hash code.
+	 */
+	private final class Children extends AbstractList<Node> implements RandomAccess {
+
+		private final int[] nodes;
+
+		private final Node[] children;
+
+		private Children(int group) {
+			int size = 0;
+			for (int child = firstChild(group); child != NONE; child = nextSibling(child)) {
+				size++;
+			}
+			this.nodes = new int[size];
+			int index = 0;
+			for (int child = firstChild(group); child != NONE; child = nextSibling(child)) {
+				this.nodes[index++] = child;
+			}
+			this.children = new Node[size];
+		}
+
+		@Override
+		public Node get(int index) {
+			Node child = this.children[Objects.checkIndex(index, this.nodes.length)];
+			if (child == null) {
+				// racing threads create equal immutable nodes, so either one is fine
+				child = node(this.nodes[index]);
+				this.children[index] = child;
+			}
+			return child;
+		}
+
+		@Override
+		public int size() {
+			return this.nodes.length;
+		}
+
+	}
+
+	private static final class Builder {
+
+		private byte[] types = new byte[16];
+
+		private int[] parents = new int[16];
+
+		private int[] firstChildren = new int[16];
+
+		private int[] nextSiblings = new int[16];
+
+		private int[] valueOffsets = new int[16];
+
+		private char[] values = new char[64];
+
+		private int size;
+
+		private int valuesLength;
+
+		/**
+		 * Adds a node to {@code parent} after its child {@code previous}, or as its first
+		 * child if that is {@link #NONE}.
+		 */
+		int add(byte type, int parent, int previous, String value) {
+			if (this.size == this.types.length) {
+				int capacity = this.size + (this.size >> 1) + 1;
+				this.types = Arrays.copyOf(this.types, capacity);
+				this.parents = Arrays.copyOf(this.parents, capacity);
+				this.firstChildren = Arrays.copyOf(this.firstChildren, capacity);
+				this.nextSiblings = Arrays.copyOf(this.nextSiblings, capacity);
+				this.valueOffsets = Arrays.copyOf(this.valueOffsets, capacity);
+			}
+			int length = value.length();
+			if (this.valuesLength + length > this.values.length) {
+				this.values = Arrays.copyOf(this.values,
+						Math.max(this.valuesLength + length, this.values.length + (this.values.length >> 1)));
+			}
+			value.getChars(0, length, this.values, this.valuesLength);
+			int node = this.size++;
+			this.types[node] = type;
+			this.parents[node] = parent;
+			this.firstChildren[node] = NONE;
+			this.nextSiblings[node] = NONE;
+			this.valueOffsets[node] = this.valuesLength;
+			this.valuesLength += length;
+			if (previous != NONE) {
+				this.nextSiblings[previous] = node;
+			}
+			else if (parent != NONE) {
+				this.firstChildren[parent] = node;
+			}
+			return node;
+		}
+
+	}
+
+}
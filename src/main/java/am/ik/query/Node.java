@@ -2,7 +2,7 @@ package am.ik.query;
 
 import java.util.List;
 
-public sealed interface Node permits RootNode, TokenNode {
+public sealed interface Node permits RootNode, TokenNode, FieldNode, AndNode, OrNode, NotNode {
 
 	String value();
 
@@ -11,12 +11,17 @@ public sealed interface Node permits RootNode, TokenNode {
 	}
 
 	static void print(Node node, int level) {
-		if (node instanceof TokenNode) {
+		if (node instanceof TokenNode || node instanceof FieldNode) {
 			System.out.println("\t".repeat(level) + node);
 		}
-		else if (node instanceof RootNode) {
+		else if (node instanceof NotNode) {
 			System.out.println("\t".repeat(level) + node);
-			List<Node> children = ((RootNode) node).children();
+			print(((NotNode) node).child(), level + 1);
+		}
+		else {
+			System.out.println("\t".repeat(level) + node);
+			List<Node> children = (node instanceof RootNode) ? ((RootNode) node).children()
+					: (node instanceof AndNode) ? ((AndNode) node).children() : ((OrNode) node).children();
 			if (!children.isEmpty()) {
 				children.forEach(c -> print(c, level + 1));
 			}
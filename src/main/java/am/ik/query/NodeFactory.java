@@ -0,0 +1,175 @@
+package am.ik.query;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hash-consing factory that returns a single shared instance for all structurally equal
+ * nodes, so that queries kept in memory share their common terms and groups, and caches
+ * keyed by node identity hit across queries. Nodes are held weakly and dropped from the
+ * factory once no tree uses them anymore.
+ * <p>
+ * The table is split into segments that are locked independently. Factories are
+ * thread-safe.
+ */
+public final class NodeFactory {
+
+	private static final int SEGMENTS = 16;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	public NodeFactory() {
+		for (int i = 0; i < SEGMENTS; i++) {
+			this.segments[i] = new Segment();
+		}
+	}
+
+	public TokenNode token(TokenType type, String value) {
+		return canonical(new TokenNode(type, value));
+	}
+
+	public FieldNode field(String name, String value) {
+		return canonical(new FieldNode(name, value));
+	}
+
+	/**
+	 * Returns the shared frozen group of {@code children}.
+	 */
+	public RootNode group(Node... children) {
+		return intern(new RootNode(Arrays.asList(children)));
+	}
+
+	/**
+	 * Returns the shared instance of {@code root}, which is frozen and whose nodes are
+	 * all shared instances. Subtrees that are already shared are reused as they are, and
+	 * groups are interned bottom-up without recursion.
+	 */
+	public RootNode intern(RootNode root) {
+		Deque<Frame> frames = new ArrayDeque<>();
+		Frame frame = new Frame(root);
+		while (true) {
+			if (frame.children.hasNext()) {
+				Node child = frame.children.next();
+				if (child instanceof RootNode) {
+					frames.push(frame);
+					frame = new Frame((RootNode) child);
+				}
+				else {
+					frame.add(child, canonical(child));
+				}
+				continue;
+			}
+			RootNode group = canonical(frame.build());
+			if (frames.isEmpty()) {
+				return group;
+			}
+			Frame parent = frames.pop();
+			parent.add(frame.group, group);
+			frame = parent;
+		}
+	}
+
+	/**
+	 * Number of shared nodes that are still in use.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : this.segments) {
+			synchronized (segment) {
+				size += segment.nodes.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Number of nodes that were replaced by an equal shared node.
+	 */
+	public long hitCount() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * Number of nodes that became shared nodes.
+	 */
+	public long missCount() {
+		return this.misses.sum();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Node> T canonical(T node) {
+		int hash = node.hashCode();
+		Segment segment = this.segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+		synchronized (segment) {
+			WeakReference<Node> reference = segment.nodes.get(node);
+			Node shared = (reference != null) ? reference.get() : null;
+			if (shared != null) {
+				this.hits.increment();
+				return (T) shared;
+			}
+			segment.nodes.put(node, new WeakReference<>(node));
+		}
+		this.misses.increment();
+		return node;
+	}
+
+	private static final class Segment {
+
+		/**
+		 * Shared nodes by themselves. The values are weak too, as a node must not keep
+		 * its own entry alive.
+		 */
+		private final Map<Node, WeakReference<Node>> nodes = new WeakHashMap<>();
+
+	}
+
+	/**
+	 * A group being interned, whose shared children are collected until it is complete.
+	 */
+	private static final class Frame {
+
+		private final RootNode group;
+
+		private final Iterator<Node> children;
+
+		private final Node[] shared;
+
+		private int count;
+
+		private boolean changed;
+
+		Frame(RootNode group) {
+			this.group = group;
+			this.children = group.children().iterator();
+			this.shared = new Node[group.children().size()];
+		}
+
+		void add(Node original, Node shared) {
+			this.shared[this.count++] = shared;
+			this.changed |= (original != shared);
+		}
+
+		/**
+		 * Returns a frozen group of the shared children, which is the original group if
+		 * it is frozen and all of its children were already shared.
+		 */
+		RootNode build() {
+			if (!this.changed && this.group.isFrozen()) {
+				return this.group;
+			}
+			return new RootNode(this.shared);
+		}
+
+	}
+
+}
@@ -0,0 +1,18 @@
+package am.ik.query;
+
+/**
+ * Matches when its child does not match, e.g. for an excluded term.
+ */
+public record NotNode(Node child) implements Node {
+
+	@Override
+	public String value() {
+		return "not";
+	}
+
+	@Override
+	public String toString() {
+		return NotNode.class.getSimpleName();
+	}
+
+}
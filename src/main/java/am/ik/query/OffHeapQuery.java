@@ -0,0 +1,308 @@
+package am.ik.query;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * View of a query kept in an {@link OffHeapQueryStore}, which reads the tree in place
+ * from direct memory. Nodes are navigated by index like those of {@link FlatQuery}, from
+ * the root at {@link FlatQuery#ROOT}, and navigation returns {@link FlatQuery#NONE} when
+ * there is no such node.
+ * <p>
+ * Every access checks that the query was not freed once it has read the memory of the
+ * query, and throws {@link IllegalStateException} otherwise, so that a view never returns
+ * data of a query that was stored in its place.
+ */
+public final class OffHeapQuery {
+
+	/**
+	 * Record length in bytes, negated once the query is freed, followed by the number of
+	 * nodes and the number of value characters.
+	 */
+	static final int HEADER_SIZE = 12;
+
+	private static final byte GROUP = -1;
+
+	private final OffHeapQueryStore.Chunk chunk;
+
+	private final int epoch;
+
+	private final ByteBuffer buffer;
+
+	private final int base;
+
+	private final int size;
+
+	private final int parents;
+
+	private final int firstChildren;
+
+	private final int nextSiblings;
+
+	private final int valueOffsets;
+
+	private final int types;
+
+	private final int values;
+
+	/**
+	 * Creates a view of the record at {@code base}, which may be freed concurrently, so
+	 * the header is only trusted once the query is known to be alive after reading it.
+	 */
+	OffHeapQuery(OffHeapQueryStore.Chunk chunk, int epoch, ByteBuffer buffer, int base) {
+		this.chunk = chunk;
+		this.epoch = epoch;
+		this.buffer = buffer;
+		this.base = base;
+		checkAlive();
+		int size;
+		try {
+			size = buffer.getInt(base + 4);
+		}
+		catch (IndexOutOfBoundsException ex) {
+			checkAlive();
+			throw ex;
+		}
+		this.size = checkAlive(size);
+		this.parents = base + HEADER_SIZE;
+		this.firstChildren = this.parents + 4 * this.size;
+		this.nextSiblings = this.firstChildren + 4 * this.size;
+		this.valueOffsets = this.nextSiblings + 4 * this.size;
+		this.types = this.valueOffsets + 4 * (this.size + 1);
+		this.values = align(this.types + this.size, 2);
+	}
+
+	/**
+	 * Number of bytes of a record with {@code size} nodes and {@code chars} value
+	 * characters: the header, four int arrays, the types and the values, padded so that
+	 * the next record is aligned to {@link OffHeapQueryStore#ALIGNMENT}.
+	 */
+	static long length(int size, int chars) {
+		long values = align(HEADER_SIZE + 16L * size + 4 + size, 2);
+		return align(values + 2L * chars, OffHeapQueryStore.ALIGNMENT);
+	}
+
+	/**
+	 * Writes {@code query} at {@code base} of {@code buffer} as a record of
+	 * {@code length} bytes.
+	 */
+	static void write(ByteBuffer buffer, int base, int length, FlatQuery query, int chars) {
+		int size = query.size();
+		int parents = base + HEADER_SIZE;
+		int firstChildren = parents + 4 * size;
+		int nextSiblings = firstChildren + 4 * size;
+		int valueOffsets = nextSiblings + 4 * size;
+		int types = valueOffsets + 4 * (size + 1);
+		int values = align(types + size, 2);
+		buffer.putInt(base, length);
+		buffer.putInt(base + 4, size);
+		buffer.putInt(base + 8, chars);
+		int offset = 0;
+		for (int node = 0; node < size; node++) {
+			buffer.putInt(parents + 4 * node, query.parent(node));
+			buffer.putInt(firstChildren + 4 * node, query.firstChild(node));
+			buffer.putInt(nextSiblings + 4 * node, query.nextSibling(node));
+			buffer.putInt(valueOffsets + 4 * node, offset);
+			buffer.put(types + node, query.isGroup(node) ? GROUP : query.type(node).code());
+			int valueLength = query.valueLength(node);
+			for (int i = 0; i < valueLength; i++) {
+				buffer.putChar(values + 2 * (offset + i), query.valueCharAt(node, i));
+			}
+			offset += valueLength;
+		}
+		buffer.putInt(valueOffsets + 4 * size, offset);
+	}
+
+	private static int align(int offset, int alignment) {
+		return (offset + alignment - 1) & -alignment;
+	}
+
+	private static long align(long offset, int alignment) {
+		return (offset + alignment - 1) & -alignment;
+	}
+
+	/**
+	 * Whether the query was not freed and its store is still open.
+	 */
+	public boolean isAlive() {
+		// the reads before this check must not be moved after it, like in a seqlock
+		VarHandle.acquireFence();
+		return this.chunk.epoch.get() == this.epoch && this.buffer.getInt(this.base) > 0;
+	}
+
+	/**
+	 * Number of nodes, including the root.
+	 */
+	public int size() {
+		checkAlive();
+		return this.size;
+	}
+
+	public boolean isGroup(int node) {
+		byte type = this.buffer.get(this.types + Objects.checkIndex(node, this.size));
+		checkAlive();
+		return type == GROUP;
+	}
+
+	/**
+	 * Type of the term at {@code node}. Groups have no type.
+	 */
+	public TokenType type(int node) {
+		byte type = this.buffer.get(this.types + Objects.checkIndex(node, this.size));
+		checkAlive();
+		if (type == GROUP) {
+			throw new IllegalArgumentException("Node " + node + " is a group");
+		}
+		return TokenType.ofCode(type);
+	}
+
+	public int parent(int node) {
+		return checkAlive(this.buffer.getInt(this.parents + 4 * Objects.checkIndex(node, this.size)));
+	}
+
+	public int firstChild(int node) {
+		return checkAlive(this.buffer.getInt(this.firstChildren + 4 * Objects.checkIndex(node, this.size)));
+	}
+
+	public int nextSibling(int node) {
+		return checkAlive(this.buffer.getInt(this.nextSiblings + 4 * Objects.checkIndex(node, this.size)));
+	}
+
+	/**
+	 * Length of the value of {@code node}, which is empty for groups.
+	 */
+	public int valueLength(int node) {
+		int offset = this.valueOffsets + 4 * Objects.checkIndex(node, this.size);
+		return checkAlive(this.buffer.getInt(offset + 4) - this.buffer.getInt(offset));
+	}
+
+	public char valueCharAt(int node, int index) {
+		try {
+			Objects.checkIndex(index, valueLength(node));
+			return (char) checkAlive(this.buffer.getChar(this.values + 2 * (valueOffset(node) + index)));
+		}
+		catch (IndexOutOfBoundsException ex) {
+			// offsets read from memory that was reused since are meaningless
+			checkAlive();
+			throw ex;
+		}
+	}
+
+	public boolean valueEquals(int node, CharSequence value) {
+		try {
+			int length = valueLength(node);
+			boolean equal = value.length() == length;
+			int offset = this.values + 2 * valueOffset(node);
+			for (int i = 0; equal && i < length; i++) {
+				equal = this.buffer.getChar(offset + 2 * i) == value.charAt(i);
+			}
+			checkAlive();
+			return equal;
+		}
+		catch (IndexOutOfBoundsException ex) {
+			checkAlive();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Value of {@code node}, copied onto the heap, which is the whole {@code name=value}
+	 * text of a {@link TokenType#FIELD} term.
+	 */
+	public String value(int node) {
+		try {
+			int length = valueLength(node);
+			int offset = this.values + 2 * valueOffset(node);
+			char[] value = new char[length];
+			for (int i = 0; i < length; i++) {
+				value[i] = this.buffer.getChar(offset + 2 * i);
+			}
+			checkAlive();
+			return new String(value);
+		}
+		catch (IndexOutOfBoundsException ex) {
+			checkAlive();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Read-only view of the tree. Each access to a child copies that node onto the heap,
+	 * so callers that read nodes repeatedly should keep them.
+	 */
+	public RootNode root() {
+		checkAlive();
+		return group(FlatQuery.ROOT);
+	}
+
+	private int valueOffset(int node) {
+		return this.buffer.getInt(this.valueOffsets + 4 * node);
+	}
+
+	private void checkAlive() {
+		if (!isAlive()) {
+			throw new IllegalStateException("Query was freed");
+		}
+	}
+
+	/**
+	 * Returns {@code value}, which was read from the query, once it is known that the
+	 * query was not freed in the meantime.
+	 */
+	private int checkAlive(int value) {
+		checkAlive();
+		return value;
+	}
+
+	private RootNode group(int node) {
+		return new RootNode(new Children(node));
+	}
+
+	private Node node(int node) {
+		if (isGroup(node)) {
+			return group(node);
+		}
+		String value = value(node);
+		if (type(node) == TokenType.FIELD) {
+			int separator = value.indexOf('=');
+			return new FieldNode(value.substring(0, separator), value.substring(separator + 1));
+		}
+		return new TokenNode(type(node), value);
+	}
+
+	/**
+	 * Children of a group, whose indices are read once, so that each access reads only
+	 * the child. Nodes are not kept, as every access must check that the query is alive.
+	 */
+	private final class Children extends AbstractList<Node> implements RandomAccess {
+
+		private final int[] nodes;
+
+		private Children(int group) {
+			int size = 0;
+			for (int child = firstChild(group); child != FlatQuery.NONE; child = nextSibling(child)) {
+				size++;
+			}
+			this.nodes = new int[size];
+			int index = 0;
+			for (int child = firstChild(group); child != FlatQuery.NONE; child = nextSibling(child)) {
+				this.nodes[index++] = child;
+			}
+		}
+
+		@Override
+		public Node get(int index) {
+			return node(this.nodes[Objects.checkIndex(index, this.nodes.length)]);
+		}
+
+		@Override
+		public int size() {
+			return this.nodes.length;
+		}
+
+	}
+
+}
@@ -0,0 +1,359 @@
+package am.ik.query;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Store of parsed queries outside of the Java heap, for keeping so many queries in memory
+ * that they would otherwise dominate garbage collection. Each query is serialized in the
+ * layout of {@link FlatQuery} into direct memory, and read in place through an
+ * {@link OffHeapQuery} view.
+ * <p>
+ * Queries are identified by the handle returned when they are stored. A store is an
+ * arena: {@link #free(long)} releases a single query, and {@link #close()} releases all
+ * of them at once, so that a store can be scoped with try-with-resources. Using the
+ * handle or a view of a released query throws {@link IllegalStateException}.
+ * <p>
+ * Memory is allocated in chunks, and queries are appended to the current chunk. A chunk
+ * is reused once all of its queries are freed. Chunks that are not needed anymore are
+ * dropped, and their memory is returned to the operating system when the garbage
+ * collector collects their buffer, so views that are still held never read unmapped
+ * memory. Storing and freeing are synchronized. Views may be read concurrently with them,
+ * as every read is checked against the epoch of its chunk once it is done.
+ * <p>
+ * Chunks are direct {@link ByteBuffer}s rather than {@code MemorySegment}s, as the
+ * Foreign Function &amp; Memory API is only an incubator module in Java 17, the baseline
+ * of this library, and its incubating versions are incompatible with the final one. A
+ * chunk's memory therefore cannot be released deterministically, which is also what keeps
+ * stale views from reading unmapped memory.
+ */
+public final class OffHeapQueryStore implements AutoCloseable {
+
+	private static final int DEFAULT_CHUNK_SIZE = 1 << 22;
+
+	/**
+	 * Handles are made of a 16-bit chunk index, the chunk's epoch and a 32-bit offset in
+	 * the chunk, in this order from the high bits.
+	 */
+	private static final int MAX_CHUNKS = 1 << 16;
+
+	/**
+	 * Last epoch of a chunk. A chunk that is emptied in this epoch is retired rather than
+	 * reused, so that a handle never matches another query of the same chunk.
+	 */
+	private static final int MAX_EPOCH = 0xFFFF;
+
+	/**
+	 * Records start at multiples of this, which is the granularity of
+	 * {@link Chunk#starts}.
+	 */
+	static final int ALIGNMENT = 8;
+
+	private static final int NONE = -1;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private static final int[] NO_STARTS = {};
+
+	private final int chunkSize;
+
+	/**
+	 * Chunks by index. Replaced when it grows, and only written while holding the lock of
+	 * this store, so that views can be created without locking.
+	 */
+	private volatile Chunk[] chunks = new Chunk[16];
+
+	private int chunkCount;
+
+	/**
+	 * Indexes of chunks without a buffer, whose slots are reused for new chunks.
+	 */
+	private final ArrayDeque<Integer> released = new ArrayDeque<>();
+
+	private int current = NONE;
+
+	/**
+	 * An empty chunk that is kept for the next one, so that a store whose queries are all
+	 * freed from time to time does not allocate again.
+	 */
+	private int spare = NONE;
+
+	private int size;
+
+	private long usedBytes;
+
+	private long reservedBytes;
+
+	private volatile boolean closed;
+
+	public OffHeapQueryStore() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Creates a store that allocates {@code chunkSize} bytes at a time. Queries that do
+	 * not fit into a chunk get a chunk of their own.
+	 */
+	public OffHeapQueryStore(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Parses {@code query} and stores it, returning its handle.
+	 */
+	public long store(CharSequence query) {
+		return store(FlatQuery.parse(query));
+	}
+
+	/**
+	 * Stores {@code root}, e.g. a tree shared by a {@link QueryCache} or a
+	 * {@link NodeFactory}, without parsing it again, returning its handle.
+	 * @see FlatQuery#of(RootNode)
+	 */
+	public long store(RootNode root) {
+		return store(FlatQuery.of(root));
+	}
+
+	/**
+	 * Copies {@code query} into the store, returning its handle.
+	 */
+	public synchronized long store(FlatQuery query) {
+		checkOpen();
+		int chars = 0;
+		for (int node = 0; node < query.size(); node++) {
+			chars += query.valueLength(node);
+		}
+		long length = OffHeapQuery.length(query.size(), chars);
+		if (length > Integer.MAX_VALUE - ALIGNMENT) {
+			throw new IllegalArgumentException("Query is too large to be stored: " + length + " bytes");
+		}
+		Chunk chunk = allocate((int) length);
+		int base = chunk.used;
+		OffHeapQuery.write(chunk.buffer, base, (int) length, query, chars);
+		chunk.used += (int) length;
+		chunk.live++;
+		chunk.mark(base, true);
+		this.size++;
+		this.usedBytes += length;
+		return ((long) chunk.index << 48) | ((long) chunk.epoch.get() << 32) | base;
+	}
+
+	/**
+	 * Returns a view of the query with {@code handle}.
+	 */
+	public OffHeapQuery get(long handle) {
+		Chunk chunk = chunk(handle);
+		return new OffHeapQuery(chunk, epoch(handle), chunk.buffer, (int) handle);
+	}
+
+	/**
+	 * Releases the query with {@code handle}, which must not be used afterwards.
+	 */
+	public synchronized void free(long handle) {
+		Chunk chunk = chunk(handle);
+		int base = (int) handle;
+		int length = chunk.buffer.getInt(base);
+		chunk.buffer.putInt(base, -length);
+		chunk.mark(base, false);
+		chunk.live--;
+		this.size--;
+		this.usedBytes -= length;
+		if (chunk.live == 0 && chunk.index != this.current) {
+			recycle(chunk);
+		}
+	}
+
+	/**
+	 * Releases all queries and the memory of the store, which cannot be used anymore.
+	 */
+	@Override
+	public synchronized void close() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		for (int i = 0; i < this.chunkCount; i++) {
+			Chunk chunk = this.chunks[i];
+			chunk.epoch.incrementAndGet();
+			chunk.buffer = EMPTY;
+			chunk.starts = NO_STARTS;
+		}
+		this.current = NONE;
+		this.spare = NONE;
+		this.size = 0;
+		this.usedBytes = 0;
+		this.reservedBytes = 0;
+	}
+
+	/**
+	 * Number of stored queries that were not freed.
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * Number of bytes used by the stored queries.
+	 */
+	public synchronized long usedBytes() {
+		return this.usedBytes;
+	}
+
+	/**
+	 * Number of bytes of direct memory allocated for the chunks in use, including their
+	 * free space. Dropped chunks are no longer counted, although their memory is only
+	 * returned to the operating system once their buffer is garbage collected.
+	 */
+	public synchronized long reservedBytes() {
+		return this.reservedBytes;
+	}
+
+	/**
+	 * Returns the chunk of the live query with {@code handle}.
+	 */
+	private Chunk chunk(long handle) {
+		checkOpen();
+		Chunk[] chunks = this.chunks;
+		int index = (int) (handle >>> 48);
+		Chunk chunk = (index < chunks.length) ? chunks[index] : null;
+		if (chunk == null || chunk.epoch.get() != epoch(handle) || !chunk.isStart((int) handle)) {
+			throw new IllegalStateException("Query was freed: " + handle);
+		}
+		return chunk;
+	}
+
+	private static int epoch(long handle) {
+		return (int) (handle >>> 32) & MAX_EPOCH;
+	}
+
+	private Chunk allocate(int length) {
+		if (this.current != NONE) {
+			Chunk chunk = this.chunks[this.current];
+			if (chunk.buffer.capacity() - chunk.used >= length) {
+				return chunk;
+			}
+			// the current chunk is only recycled once it is full, so that storing and
+			// freeing a single query does not start a new epoch every time
+			this.current = NONE;
+			if (chunk.live == 0) {
+				recycle(chunk);
+			}
+		}
+		if (length > this.chunkSize) {
+			return newChunk(length);
+		}
+		Chunk chunk;
+		if (this.spare != NONE) {
+			chunk = this.chunks[this.spare];
+			this.spare = NONE;
+		}
+		else {
+			chunk = newChunk(this.chunkSize);
+		}
+		this.current = chunk.index;
+		return chunk;
+	}
+
+	private Chunk newChunk(int capacity) {
+		Integer slot = this.released.poll();
+		Chunk chunk;
+		if (slot != null) {
+			chunk = this.chunks[slot];
+		}
+		else {
+			if (this.chunkCount == MAX_CHUNKS) {
+				throw new IllegalStateException("Store is full: " + MAX_CHUNKS + " chunks");
+			}
+			Chunk[] chunks = this.chunks;
+			if (this.chunkCount == chunks.length) {
+				chunks = Arrays.copyOf(chunks, chunks.length << 1);
+			}
+			chunk = new Chunk(this.chunkCount++);
+			chunks[chunk.index] = chunk;
+			this.chunks = chunks;
+		}
+		chunk.buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+		chunk.starts = new int[(capacity / ALIGNMENT + 31) >>> 5];
+		this.reservedBytes += capacity;
+		return chunk;
+	}
+
+	/**
+	 * Starts a new epoch of an empty chunk, which invalidates the handles and views of
+	 * its queries, and keeps it for new queries or drops its buffer.
+	 */
+	private void recycle(Chunk chunk) {
+		chunk.used = 0;
+		Arrays.fill(chunk.starts, 0);
+		boolean retired = chunk.epoch.getAndIncrement() == MAX_EPOCH;
+		if (!retired && chunk.buffer.capacity() == this.chunkSize && this.spare == NONE) {
+			this.spare = chunk.index;
+			return;
+		}
+		this.reservedBytes -= chunk.buffer.capacity();
+		chunk.buffer = EMPTY;
+		chunk.starts = NO_STARTS;
+		if (!retired) {
+			this.released.add(chunk.index);
+		}
+	}
+
+	private void checkOpen() {
+		if (this.closed) {
+			throw new IllegalStateException("Store is closed");
+		}
+	}
+
+	/**
+	 * A buffer of direct memory holding queries one after the other. The epoch changes
+	 * whenever the chunk is emptied, which invalidates the handles and views of its
+	 * queries. All fields are only written while holding the lock of the store.
+	 */
+	static final class Chunk {
+
+		private final int index;
+
+		volatile ByteBuffer buffer = EMPTY;
+
+		final AtomicInteger epoch = new AtomicInteger();
+
+		/**
+		 * One bit per {@link #ALIGNMENT} bytes, set where a live query starts, so that
+		 * handles that do not point at one are rejected.
+		 */
+		private volatile int[] starts = NO_STARTS;
+
+		private int used;
+
+		private int live;
+
+		Chunk(int index) {
+			this.index = index;
+		}
+
+		boolean isStart(int offset) {
+			int[] starts = this.starts;
+			int unit = offset / ALIGNMENT;
+			return offset >= 0 && offset % ALIGNMENT == 0 && unit < (starts.length << 5)
+					&& (starts[unit >>> 5] & (1 << unit)) != 0;
+		}
+
+		void mark(int offset, boolean start) {
+			int unit = offset / ALIGNMENT;
+			if (start) {
+				this.starts[unit >>> 5] |= 1 << unit;
+			}
+			else {
+				this.starts[unit >>> 5] &= ~(1 << unit);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,25 @@
+package am.ik.query;
+
+import java.util.List;
+
+/**
+ * Matches when any of its children matches. Children are never {@link OrNode}s
+ * themselves.
+ */
+public record OrNode(List<Node> children) implements Node {
+
+	public OrNode {
+		children = List.copyOf(children);
+	}
+
+	@Override
+	public String value() {
+		return "or";
+	}
+
+	@Override
+	public String toString() {
+		return OrNode.class.getSimpleName();
+	}
+
+}
@@ -0,0 +1,216 @@
+package am.ik.query;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Token buffer that packs each token into a single {@code long} of type, start offset and
+ * length, so tokenizing allocates nothing but the growing array. Tokens are read through
+ * the index-based accessors or a {@link #cursor()}, and only become {@link Token} objects
+ * when {@link #get(int)} is called.
+ * <p>
+ * Offsets are limited to {@code 2^31 - 1} and lengths to {@code 2^29 - 1} characters.
+ */
+public final class PackedTokens {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private static final int LENGTH_BITS = 29;
+
+	private static final int START_BITS = 31;
+
+	private static final int TYPE_BITS = Long.SIZE - START_BITS - LENGTH_BITS;
+
+	private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+
+	private static final long START_MASK = (1L << START_BITS) - 1;
+
+	static {
+		int types = TokenType.values().length;
+		if (types > 1 << TYPE_BITS) {
+			throw new IllegalStateException(types + " token types do not fit into " + TYPE_BITS + " bits");
+		}
+	}
+
+	private CharSequence source;
+
+	private long[] tokens;
+
+	private int size;
+
+	public PackedTokens(CharSequence source) {
+		this(source, DEFAULT_CAPACITY);
+	}
+
+	public PackedTokens(CharSequence source, int initialCapacity) {
+		if (initialCapacity < 0) {
+			throw new IllegalArgumentException("initialCapacity must not be negative: " + initialCapacity);
+		}
+		this.source = source;
+		this.tokens = new long[Math.max(initialCapacity, 1)];
+	}
+
+	public static PackedTokens tokenize(CharSequence input) {
+		return new PackedTokens(input).lex(new QueryLexer(input));
+	}
+
+	/**
+	 * Replaces the tokens with those of {@code input}, reusing this buffer's array.
+	 */
+	public PackedTokens reset(CharSequence input) {
+		this.source = input;
+		this.size = 0;
+		return lex(new QueryLexer(input));
+	}
+
+	private PackedTokens lex(QueryLexer lexer) {
+		while (lexer.advance()) {
+			add(lexer.type(), lexer.start(), lexer.end());
+		}
+		return this;
+	}
+
+	public CharSequence source() {
+		return this.source;
+	}
+
+	public void add(TokenType type, int start, int end) {
+		Objects.checkFromToIndex(start, end, this.source.length());
+		int length = end - start;
+		if (length > LENGTH_MASK) {
+			throw new IllegalArgumentException("Token is too long: " + length);
+		}
+		if (this.size == this.tokens.length) {
+			grow(this.size + 1);
+		}
+		this.tokens[this.size++] = ((long) type.code() << (START_BITS + LENGTH_BITS)) | ((long) start << LENGTH_BITS)
+				| length;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public TokenType type(int index) {
+		return TokenType.ofCode((int) (packed(index) >>> (START_BITS + LENGTH_BITS)));
+	}
+
+	public int start(int index) {
+		return (int) ((packed(index) >>> LENGTH_BITS) & START_MASK);
+	}
+
+	public int end(int index) {
+		long token = packed(index);
+		return (int) ((token >>> LENGTH_BITS) & START_MASK) + (int) (token & LENGTH_MASK);
+	}
+
+	public int length(int index) {
+		return (int) (packed(index) & LENGTH_MASK);
+	}
+
+	public String value(int index) {
+		long token = packed(index);
+		int start = (int) ((token >>> LENGTH_BITS) & START_MASK);
+		return this.source.subSequence(start, start + (int) (token & LENGTH_MASK)).toString();
+	}
+
+	public Token get(int index) {
+		return new Token(type(index), this.source, start(index), end(index));
+	}
+
+	public TokenCursor cursor() {
+		return cursor(0, this.size);
+	}
+
+	/**
+	 * Cursor over the tokens from {@code from} (inclusive) to {@code to} (exclusive).
+	 */
+	Cursor cursor(int from, int to) {
+		Objects.checkFromToIndex(from, to, this.size);
+		return new Cursor(from, to);
+	}
+
+	/**
+	 * Appends the tokens from {@code from} to {@code to} of {@code other}, moving their
+	 * offsets by {@code shift} characters. The offsets must be valid in this source.
+	 */
+	void addAll(PackedTokens other, int from, int to, int shift) {
+		Objects.checkFromToIndex(from, to, other.size);
+		int count = to - from;
+		if (this.size + count > this.tokens.length) {
+			grow(this.size + count);
+		}
+		long delta = (long) shift << LENGTH_BITS;
+		for (int i = from; i < to; i++) {
+			this.tokens[this.size++] = other.tokens[i] + delta;
+		}
+	}
+
+	private long packed(int index) {
+		Objects.checkIndex(index, this.size);
+		return this.tokens[index];
+	}
+
+	private void grow(int minCapacity) {
+		this.tokens = Arrays.copyOf(this.tokens,
+				Math.max(minCapacity, this.tokens.length + (this.tokens.length >> 1) + 1));
+	}
+
+	final class Cursor implements TokenCursor {
+
+		private final int end;
+
+		private int index;
+
+		private int next;
+
+		private Cursor(int from, int to) {
+			this.end = to;
+			this.index = from - 1;
+			this.next = from;
+		}
+
+		@Override
+		public boolean advance() {
+			if (this.next < this.end) {
+				this.index = this.next++;
+				return true;
+			}
+			this.index = this.end;
+			return false;
+		}
+
+		@Override
+		public TokenType type() {
+			return PackedTokens.this.type(this.index);
+		}
+
+		@Override
+		public int start() {
+			return PackedTokens.this.start(this.index);
+		}
+
+		@Override
+		public int end() {
+			return PackedTokens.this.end(this.index);
+		}
+
+		@Override
+		public String value() {
+			return PackedTokens.this.value(this.index);
+		}
+
+		/**
+		 * Index of the current token, or the end of the range once it is exhausted.
+		 */
+		int index() {
+			return this.index;
+		}
+
+	}
+
+}
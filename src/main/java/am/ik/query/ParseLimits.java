@@ -0,0 +1,86 @@
+package am.ik.query;
+
+import java.util.EnumMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission limits for {@link QueryParser#parse(ParseLimits)}, which are checked as the
+ * input is read so that oversized queries are rejected after work proportional to the
+ * limits. Instances are thread-safe and count the problems found by every parse that used
+ * them, e.g. to export as metrics.
+ */
+public final class ParseLimits {
+
+	/**
+	 * Value of a limit that is not enforced.
+	 */
+	public static final int UNLIMITED = Integer.MAX_VALUE;
+
+	private final int maxInputLength;
+
+	private final int maxTokens;
+
+	private final int maxDepth;
+
+	private final int maxTerms;
+
+	private final EnumMap<Diagnostic.Kind, LongAdder> counters = new EnumMap<>(Diagnostic.Kind.class);
+
+	/**
+	 * Creates limits on the number of characters, tokens (including whitespace), group
+	 * nesting levels and terms (keywords, phrases and exclusions) of a query.
+	 */
+	public ParseLimits(int maxInputLength, int maxTokens, int maxDepth, int maxTerms) {
+		this.maxInputLength = requireNonNegative("maxInputLength", maxInputLength);
+		this.maxTokens = requireNonNegative("maxTokens", maxTokens);
+		this.maxDepth = requireNonNegative("maxDepth", maxDepth);
+		this.maxTerms = requireNonNegative("maxTerms", maxTerms);
+		for (Diagnostic.Kind kind : Diagnostic.Kind.values()) {
+			this.counters.put(kind, new LongAdder());
+		}
+	}
+
+	private static int requireNonNegative(String name, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException(name + " must not be negative: " + value);
+		}
+		return value;
+	}
+
+	public int maxInputLength() {
+		return this.maxInputLength;
+	}
+
+	public int maxTokens() {
+		return this.maxTokens;
+	}
+
+	public int maxDepth() {
+		return this.maxDepth;
+	}
+
+	public int maxTerms() {
+		return this.maxTerms;
+	}
+
+	/**
+	 * Number of parses with these limits that reported a diagnostic of {@code kind}.
+	 */
+	public long count(Diagnostic.Kind kind) {
+		return counter(kind).sum();
+	}
+
+	void record(Diagnostic diagnostic) {
+		counter(diagnostic.kind()).increment();
+	}
+
+	/**
+	 * Counters of every kind are created up front and never replaced, so they can be read
+	 * concurrently.
+	 */
+	private LongAdder counter(Diagnostic.Kind kind) {
+		return Objects.requireNonNull(this.counters.get(kind));
+	}
+
+}
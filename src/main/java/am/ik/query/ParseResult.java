@@ -0,0 +1,28 @@
+package am.ik.query;
+
+import java.util.List;
+
+/**
+ * Best-effort result of {@link QueryParser#parseLenient()} or
+ * {@link QueryParser#parse(ParseLimits)}, with the problems that were worked around
+ * ordered by offset.
+ */
+public record ParseResult(RootNode root, List<Diagnostic> diagnostics) {
+
+	public ParseResult {
+		diagnostics = List.copyOf(diagnostics);
+	}
+
+	public boolean isValid() {
+		return this.diagnostics.isEmpty();
+	}
+
+	/**
+	 * Whether the query was rejected for exceeding a {@link ParseLimits limit}, in which
+	 * case the root is empty and the only diagnostic says which.
+	 */
+	public boolean isRejected() {
+		return this.diagnostics.size() == 1 && this.diagnostics.get(0).kind().isRejecting();
+	}
+
+}
@@ -0,0 +1,306 @@
+package am.ik.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A parsed query that can be edited without parsing it again from scratch, e.g. on every
+ * keystroke of a search box.
+ * <p>
+ * {@link #edit(int, int, CharSequence)} re-lexes from the last whitespace before the edit
+ * until the tokens line up with the previous ones again, then rebuilds only the innermost
+ * group that encloses the changed tokens. Every other node, including whole subtrees, is
+ * reused by identity, and the ancestors of the rebuilt group are copied with the new
+ * group in place. Edits that change how the surrounding parens match fall back to a full
+ * parse.
+ * <p>
+ * Results are immutable and share their frozen nodes.
+ */
+public final class ParsedQuery {
+
+	private final String query;
+
+	private final RootNode root;
+
+	private final PackedTokens tokens;
+
+	/**
+	 * The node created for each token: a {@link TokenNode} for terms and OR, the group's
+	 * {@link RootNode} for {@code (}, and {@code null} for anything else.
+	 */
+	private final Node[] nodes;
+
+	/**
+	 * Index of the {@code )} that ended parsing early, or the number of tokens.
+	 */
+	private final int rootEnd;
+
+	/**
+	 * Whether the query ends with a lone quote. Its token has no valid range, so it is
+	 * not stored and fails the parse only if the parser reaches it, like
+	 * {@link QueryParser#parseQuery(CharSequence)} does.
+	 */
+	private final boolean danglingQuote;
+
+	private ParsedQuery(String query, RootNode root, PackedTokens tokens, Node[] nodes, int rootEnd,
+			boolean danglingQuote) {
+		this.query = query;
+		this.root = root;
+		this.tokens = tokens;
+		this.nodes = nodes;
+		this.rootEnd = rootEnd;
+		this.danglingQuote = danglingQuote;
+	}
+
+	public static ParsedQuery parse(CharSequence query) {
+		String text = query.toString();
+		PackedTokens tokens = new PackedTokens(text);
+		QueryLexer lexer = new QueryLexer(text);
+		while (lexer.advance()) {
+			if (lexer.start() > lexer.end()) {
+				return parse(text, tokens, true);
+			}
+			tokens.add(lexer.type(), lexer.start(), lexer.end());
+		}
+		return parse(text, tokens, false);
+	}
+
+	public String query() {
+		return this.query;
+	}
+
+	public RootNode root() {
+		return this.root;
+	}
+
+	/**
+	 * Returns the result of replacing {@code removedLength} characters at {@code offset}
+	 * with {@code inserted}. This result is left unchanged.
+	 */
+	public ParsedQuery edit(int offset, int removedLength, CharSequence inserted) {
+		Objects.checkFromIndexSize(offset, removedLength, this.query.length());
+		String text = this.query.substring(0, offset) + inserted + this.query.substring(offset + removedLength);
+		int delta = inserted.length() - removedLength;
+		int size = this.tokens.size();
+		// the lexer state right after whitespace does not depend on anything before it,
+		// so lexing restarts after the last whitespace that ends before the edit
+		int restart = countEndingBefore(offset) - 1;
+		while (restart >= 0 && this.tokens.type(restart) != TokenType.WHITESPACE) {
+			restart--;
+		}
+		int first = restart + 1;
+		int lexStart = (restart >= 0) ? this.tokens.end(restart) : 0;
+		// lex until a whitespace token after the edit starts where one started before
+		int editEnd = offset + inserted.length();
+		QueryLexer lexer = new QueryLexer(text, lexStart, text.length());
+		PackedTokens window = new PackedTokens(text);
+		int last = size;
+		int old = first;
+		boolean danglingQuote = false;
+		while (lexer.advance()) {
+			if (lexer.start() > lexer.end()) {
+				danglingQuote = true;
+				break;
+			}
+			if (lexer.type() == TokenType.WHITESPACE && lexer.start() >= editEnd) {
+				int start = lexer.start() - delta;
+				while (old < size && this.tokens.end(old) <= start) {
+					old++;
+				}
+				if (old < size && this.tokens.type(old) == TokenType.WHITESPACE && this.tokens.start(old) == start) {
+					last = old;
+					danglingQuote = this.danglingQuote;
+					break;
+				}
+			}
+			window.add(lexer.type(), lexer.start(), lexer.end());
+		}
+		int added = window.size();
+		int length = first + added + (size - last);
+		int shift = first + added - last;
+		PackedTokens tokens = new PackedTokens(text, length);
+		tokens.addAll(this.tokens, 0, first, 0);
+		tokens.addAll(window, 0, added, 0);
+		tokens.addAll(this.tokens, last, size, delta);
+		Node[] nodes = new Node[length];
+		System.arraycopy(this.nodes, 0, nodes, 0, first);
+		System.arraycopy(this.nodes, last, nodes, last + shift, size - last);
+		// tokens at either end of the window that did not change keep their nodes, so
+		// only the changed tokens in between decide which group to rebuild
+		int from = first;
+		while (from < first + added && from < last && isSame(from, tokens, text, from)) {
+			nodes[from] = this.nodes[from];
+			from++;
+		}
+		int to = last;
+		while (to > from && to + shift > from && isSame(to - 1, tokens, text, to - 1 + shift)) {
+			to--;
+			nodes[to + shift] = this.nodes[to];
+		}
+		if (this.rootEnd < from) {
+			// the edit is after the ')' that ended parsing
+			return new ParsedQuery(text, this.root, tokens, nodes, this.rootEnd, danglingQuote);
+		}
+		if (this.rootEnd < to || !isBalanced(this.tokens, from, to) || !isBalanced(tokens, from, to + shift)) {
+			return parse(text, tokens, danglingQuote);
+		}
+		int rootEnd = (this.rootEnd == size) ? length : this.rootEnd + shift;
+		if (danglingQuote && rootEnd == length) {
+			throw danglingQuote(text);
+		}
+		assign(new QueryParser(tokens.cursor(from, to + shift)).parse(), tokens, nodes, from, to + shift);
+		// rebuild the innermost group around the edit, then copy its ancestors
+		int open = enclosingGroup(from);
+		Node previous = (open >= 0) ? nodes[open] : this.root;
+		RootNode group = new RootNode(children(tokens, nodes, open + 1, rootEnd).toArray(new Node[0]));
+		while (open >= 0) {
+			nodes[open] = group;
+			open = enclosingGroup(open);
+			RootNode parent = (open >= 0) ? (RootNode) nodes[open] : this.root;
+			Node[] children = parent.children().toArray(new Node[0]);
+			for (int i = 0; i < children.length; i++) {
+				if (children[i] == previous) {
+					children[i] = group;
+					break;
+				}
+			}
+			previous = parent;
+			group = new RootNode(children);
+		}
+		return new ParsedQuery(text, group, tokens, nodes, rootEnd, danglingQuote);
+	}
+
+	private static ParsedQuery parse(String text, PackedTokens tokens, boolean danglingQuote) {
+		PackedTokens.Cursor cursor = tokens.cursor(0, tokens.size());
+		RootNode root = new QueryParser(cursor).parse();
+		if (danglingQuote && cursor.index() == tokens.size()) {
+			throw danglingQuote(text);
+		}
+		Node[] nodes = new Node[tokens.size()];
+		assign(root, tokens, nodes, 0, cursor.index());
+		return new ParsedQuery(text, root, tokens, nodes, cursor.index(), danglingQuote);
+	}
+
+	private static IndexOutOfBoundsException danglingQuote(String text) {
+		return new StringIndexOutOfBoundsException("Unterminated quote at index " + (text.length() - 1));
+	}
+
+	/**
+	 * Whether token {@code index} has the same type and text as token {@code other} of
+	 * the edited query.
+	 */
+	private boolean isSame(int index, PackedTokens tokens, String text, int other) {
+		int length = this.tokens.length(index);
+		return this.tokens.type(index) == tokens.type(other) && length == tokens.length(other)
+				&& this.query.regionMatches(this.tokens.start(index), text, tokens.start(other), length);
+	}
+
+	/**
+	 * Number of tokens that end before {@code offset}. Token ends never decrease.
+	 */
+	private int countEndingBefore(int offset) {
+		int low = 0;
+		int high = this.tokens.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.tokens.end(middle) < offset) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Index of the {@code (} of the innermost group that is still open at token
+	 * {@code index}, or {@code -1} for the root.
+	 */
+	private int enclosingGroup(int index) {
+		int depth = 0;
+		for (int i = index - 1; i >= 0; i--) {
+			TokenType type = this.tokens.type(i);
+			if (type == TokenType.RPAREN) {
+				depth++;
+			}
+			else if (type == TokenType.LPAREN) {
+				if (depth == 0) {
+					return i;
+				}
+				depth--;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Nodes of the group whose tokens start at {@code from}, which ends at its {@code )},
+	 * at {@code end} or at the end of the tokens.
+	 */
+	private static List<Node> children(PackedTokens tokens, Node[] nodes, int from, int end) {
+		List<Node> children = new ArrayList<>();
+		int depth = 0;
+		for (int i = from; i < end; i++) {
+			TokenType type = tokens.type(i);
+			if (type == TokenType.RPAREN) {
+				if (depth == 0) {
+					break;
+				}
+				depth--;
+			}
+			else if (depth == 0 && nodes[i] != null) {
+				children.add(nodes[i]);
+			}
+			if (type == TokenType.LPAREN) {
+				depth++;
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Records the nodes that {@code root} was parsed into from the tokens between
+	 * {@code from} and {@code to}, which appear in the same order as their tokens.
+	 */
+	private static void assign(RootNode root, PackedTokens tokens, Node[] nodes, int from, int to) {
+		RootNode[] groups = { root };
+		int[] next = new int[1];
+		int depth = 0;
+		for (int i = from; i < to; i++) {
+			TokenType type = tokens.type(i);
+			if (type == TokenType.RPAREN) {
+				depth--;
+			}
+			else if (type != TokenType.WHITESPACE) {
+				Node node = groups[depth].children().get(next[depth]++);
+				nodes[i] = node;
+				if (type == TokenType.LPAREN) {
+					if (++depth == groups.length) {
+						groups = Arrays.copyOf(groups, depth << 1);
+						next = Arrays.copyOf(next, depth << 1);
+					}
+					groups[depth] = (RootNode) node;
+					next[depth] = 0;
+				}
+			}
+		}
+	}
+
+	private static boolean isBalanced(PackedTokens tokens, int from, int to) {
+		int depth = 0;
+		for (int i = from; i < to; i++) {
+			TokenType type = tokens.type(i);
+			if (type == TokenType.LPAREN) {
+				depth++;
+			}
+			else if (type == TokenType.RPAREN && --depth < 0) {
+				return false;
+			}
+		}
+		return depth == 0;
+	}
+
+}
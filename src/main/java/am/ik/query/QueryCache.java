@@ -0,0 +1,277 @@
+package am.ik.query;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of parsed queries for traffic that repeats the same queries. Lookups are
+ * lock-free. When the cache is full, a new query is only admitted if it has been seen
+ * more often recently than the query it would evict, as estimated by a TinyLFU frequency
+ * sketch, so that a burst of one-off queries does not flush the popular ones.
+ * <p>
+ * Cached trees are frozen and shared between all callers. Malformed queries are not
+ * cached and throw on every call, like {@link QueryParser#parseQuery(CharSequence)}.
+ * <p>
+ * With a {@link QueryCanonicalizer}, canonical trees are cached instead, and queries with
+ * the same fingerprint share a single tree.
+ */
+public final class QueryCache {
+
+	private final int maximumSize;
+
+	private final Map<String, RootNode> trees;
+
+	/**
+	 * Cached queries, oldest first. Guarded by itself, as are all writes to
+	 * {@link #trees} and {@link #shared}.
+	 */
+	private final ArrayDeque<Key> queue;
+
+	private final QueryCanonicalizer canonicalizer;
+
+	/**
+	 * Canonical trees by fingerprint, with the number of cached queries that share them.
+	 */
+	private final Map<Long, Shared> shared;
+
+	private final FrequencySketch sketch;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	public QueryCache(int maximumSize) {
+		this(maximumSize, QueryCanonicalizer.NONE);
+	}
+
+	/**
+	 * Creates a cache of the trees built by {@code canonicalizer}.
+	 */
+	public QueryCache(int maximumSize, QueryCanonicalizer canonicalizer) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+		}
+		this.maximumSize = maximumSize;
+		this.trees = new ConcurrentHashMap<>();
+		this.queue = new ArrayDeque<>();
+		this.sketch = new FrequencySketch(maximumSize);
+		this.canonicalizer = canonicalizer;
+		this.shared = new HashMap<>();
+	}
+
+	/**
+	 * Returns the cached tree of {@code query}, parsing and possibly caching it on a
+	 * miss.
+	 */
+	public RootNode parseQuery(CharSequence query) {
+		String key = query.toString();
+		int hash = key.hashCode();
+		this.sketch.increment(hash);
+		RootNode tree = this.trees.get(key);
+		if (tree != null) {
+			this.hits.increment();
+			return tree;
+		}
+		this.misses.increment();
+		tree = QueryParser.parseQuery(key);
+		long fingerprint = 0;
+		if (this.canonicalizer != QueryCanonicalizer.NONE) {
+			CanonicalQuery canonical = this.canonicalizer.canonicalize(tree);
+			tree = canonical.root();
+			fingerprint = canonical.fingerprint();
+		}
+		return admit(new Key(key, fingerprint), hash, tree);
+	}
+
+	/**
+	 * Caches {@code tree} if there is room or if {@code key} is more frequent than the
+	 * oldest cached query, and returns the tree to use, which is the shared one if an
+	 * equivalent query is cached. An oldest query that is more frequent is kept and moved
+	 * to the back of the queue, so that the next candidate is compared with another one.
+	 */
+	private RootNode admit(Key key, int hash, RootNode tree) {
+		synchronized (this.queue) {
+			RootNode cached = this.trees.get(key.query());
+			if (cached != null) {
+				return cached;
+			}
+			if (this.queue.size() >= this.maximumSize) {
+				Key victim = this.queue.pollFirst();
+				if (victim == null) {
+					return tree;
+				}
+				if (this.sketch.frequency(victim.query().hashCode()) >= this.sketch.frequency(hash)) {
+					this.queue.addLast(victim);
+					return share(key.fingerprint(), tree, false);
+				}
+				release(victim.fingerprint(), this.trees.remove(victim.query()));
+				this.evictions.increment();
+			}
+			tree = share(key.fingerprint(), tree, true);
+			this.queue.addLast(key);
+			this.trees.put(key.query(), tree);
+			return tree;
+		}
+	}
+
+	/**
+	 * Returns the cached tree with {@code fingerprint}, or {@code tree} if there is none,
+	 * and counts a query that shares it if {@code acquire} is set. A cached tree that is
+	 * not equal to {@code tree} has the same fingerprint by chance, so {@code tree} is
+	 * used on its own instead.
+	 */
+	private RootNode share(long fingerprint, RootNode tree, boolean acquire) {
+		if (this.canonicalizer == QueryCanonicalizer.NONE) {
+			return tree;
+		}
+		Shared shared = this.shared.get(fingerprint);
+		if (shared != null && !shared.tree.equals(tree)) {
+			return tree;
+		}
+		if (shared == null) {
+			if (!acquire) {
+				return tree;
+			}
+			shared = new Shared(tree);
+			this.shared.put(fingerprint, shared);
+		}
+		if (acquire) {
+			shared.queries++;
+		}
+		return shared.tree;
+	}
+
+	/**
+	 * Counts that an evicted query with {@code tree} no longer shares it, unless it kept
+	 * a tree of its own because of a fingerprint collision.
+	 */
+	private void release(long fingerprint, RootNode tree) {
+		Shared shared = this.shared.get(fingerprint);
+		if (shared != null && shared.tree.equals(tree) && --shared.queries == 0) {
+			this.shared.remove(fingerprint);
+		}
+	}
+
+	public int size() {
+		return this.trees.size();
+	}
+
+	public long hitCount() {
+		return this.hits.sum();
+	}
+
+	public long missCount() {
+		return this.misses.sum();
+	}
+
+	public long evictionCount() {
+		return this.evictions.sum();
+	}
+
+	private record Key(String query, long fingerprint) {
+
+	}
+
+	private static final class Shared {
+
+		private final RootNode tree;
+
+		private int queries;
+
+		Shared(RootNode tree) {
+			this.tree = tree;
+		}
+
+	}
+
+	/**
+	 * Count-min sketch of how often each query was requested recently, with four 4-bit
+	 * counters per query that are all halved once enough queries were counted, so that
+	 * old popularity fades. The counts are approximate: updates are not synchronized, so
+	 * concurrent increments may be lost and counters may be halved twice, which only
+	 * makes the estimates slightly less accurate.
+	 * <p>
+	 * Halving is spread over the increments that follow, a few counters each, so that no
+	 * request pays for the whole table.
+	 */
+	static final class FrequencySketch {
+
+		private static final int[] SEEDS = { 0x97cb3127, 0x4c1bd9b1, 0x8e2d7d5f, 0x2b7c89d3 };
+
+		private static final int MAX_COUNT = 15;
+
+		/**
+		 * Counters halved per increment while aging, which finishes long before the next
+		 * sample as there are fewer than {@code sampleSize / 2} counters.
+		 */
+		private static final int AGING_STEP = 8;
+
+		private final byte[] counters;
+
+		private final int shift;
+
+		private final int sampleSize;
+
+		private int additions;
+
+		/**
+		 * Next counter to halve, or the number of counters if the sketch is not aging.
+		 */
+		private int aging;
+
+		FrequencySketch(int maximumSize) {
+			int width = Integer.highestOneBit(Math.max(16, Math.min(maximumSize, 1 << 24) - 1) << 1);
+			this.counters = new byte[SEEDS.length * width];
+			this.shift = Integer.numberOfLeadingZeros(width - 1);
+			this.sampleSize = 10 * width;
+			this.aging = this.counters.length;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int row = 0; row < SEEDS.length; row++) {
+				int index = index(hash, row);
+				if (this.counters[index] < MAX_COUNT) {
+					this.counters[index]++;
+					added = true;
+				}
+			}
+			if (this.aging < this.counters.length) {
+				age();
+			}
+			else if (added && ++this.additions >= this.sampleSize) {
+				this.additions >>= 1;
+				this.aging = 0;
+			}
+		}
+
+		private void age() {
+			int start = this.aging;
+			int end = Math.min(start + AGING_STEP, this.counters.length);
+			this.aging = end;
+			for (int i = start; i < end; i++) {
+				this.counters[i] >>= 1;
+			}
+		}
+
+		int frequency(int hash) {
+			int frequency = MAX_COUNT;
+			for (int row = 0; row < SEEDS.length; row++) {
+				frequency = Math.min(frequency, this.counters[index(hash, row)]);
+			}
+			return frequency;
+		}
+
+		private int index(int hash, int row) {
+			int width = this.counters.length / SEEDS.length;
+			return row * width + ((hash * SEEDS[row]) >>> this.shift);
+		}
+
+	}
+
+}
@@ -0,0 +1,235 @@
+package am.ik.query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Rewrites parsed queries into a canonical form, so that queries that only differ in ways
+ * that do not change what they match get equal trees and the same fingerprint:
+ * <ul>
+ * <li>runs of whitespace in values are collapsed into a single space and trimmed;</li>
+ * <li>OR is always spelled {@code or}, and values and field names are lower-cased if case
+ * folding is enabled;</li>
+ * <li>groups with a single child are replaced by that child, unless it is an OR.</li>
+ * </ul>
+ * Nodes and frozen groups that are already canonical are reused rather than copied.
+ */
+public final class QueryCanonicalizer {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Markers mixed into the fingerprint around groups and values, above the range of
+	 * {@code char} so that they never collide with value characters.
+	 */
+	private static final int OPEN = 0x10000;
+
+	private static final int CLOSE = 0x10001;
+
+	private static final int SEPARATOR = 0x10002;
+
+	/**
+	 * Placeholder for caches that do not canonicalize.
+	 */
+	static final QueryCanonicalizer NONE = new QueryCanonicalizer(false);
+
+	private final boolean foldCase;
+
+	public QueryCanonicalizer(boolean foldCase) {
+		this.foldCase = foldCase;
+	}
+
+	/**
+	 * Returns the canonical form of {@code root} and its fingerprint, computed in a
+	 * single walk without recursion. The fingerprint only depends on the canonical tree
+	 * and is stable across JVMs and releases, so it can be stored and used for sharding.
+	 */
+	public CanonicalQuery canonicalize(RootNode root) {
+		long hash = FNV_OFFSET_BASIS;
+		Deque<Frame> frames = new ArrayDeque<>();
+		// a group that is the only child of the root is as redundant as one in a group
+		while (root.children().size() == 1 && root.children().get(0) instanceof RootNode) {
+			root = (RootNode) root.children().get(0);
+		}
+		Frame frame = new Frame(root, root);
+		while (true) {
+			if (frame.children.hasNext()) {
+				Node original = frame.children.next();
+				Node child = unwrap(original);
+				if (child instanceof RootNode) {
+					hash = mix(hash, OPEN);
+					frames.push(frame);
+					frame = new Frame(original, (RootNode) child);
+					continue;
+				}
+				Node canonical = canonicalize(child);
+				hash = fingerprint(hash, canonical);
+				frame.add(original, canonical);
+				continue;
+			}
+			RootNode group = frame.build();
+			if (frames.isEmpty()) {
+				return new CanonicalQuery(group, fmix(hash));
+			}
+			hash = mix(hash, CLOSE);
+			Frame parent = frames.pop();
+			parent.add(frame.original, group);
+			frame = parent;
+		}
+	}
+
+	/**
+	 * Replaces single-child groups by their child, unless it is an OR, which would join
+	 * the terms around the group.
+	 */
+	private static Node unwrap(Node node) {
+		while (node instanceof RootNode && ((RootNode) node).children().size() == 1) {
+			Node child = ((RootNode) node).children().get(0);
+			if (child instanceof TokenNode && ((TokenNode) child).type() == TokenType.OR) {
+				break;
+			}
+			node = child;
+		}
+		return node;
+	}
+
+	private Node canonicalize(Node node) {
+		if (node instanceof TokenNode) {
+			TokenNode token = (TokenNode) node;
+			String value = (token.type() == TokenType.OR) ? "or" : normalize(token.value());
+			return value.equals(token.value()) ? token : new TokenNode(token.type(), value);
+		}
+		if (node instanceof FieldNode) {
+			FieldNode field = (FieldNode) node;
+			String name = normalize(field.name());
+			String value = normalize(field.value());
+			return (name.equals(field.name()) && value.equals(field.value())) ? field : new FieldNode(name, value);
+		}
+		throw new IllegalArgumentException("Cannot canonicalize " + node);
+	}
+
+	private String normalize(String value) {
+		String folded = this.foldCase ? value.toLowerCase(Locale.ROOT) : value;
+		return collapseWhitespace(folded);
+	}
+
+	private static String collapseWhitespace(String value) {
+		int length = value.length();
+		int i = 0;
+		while (i < length && !isWhitespace(value.charAt(i))) {
+			i++;
+		}
+		if (i == length) {
+			return value;
+		}
+		StringBuilder builder = new StringBuilder(length);
+		boolean pendingSpace = false;
+		for (i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (isWhitespace(c)) {
+				pendingSpace = builder.length() > 0;
+			}
+			else {
+				if (pendingSpace) {
+					builder.append(' ');
+					pendingSpace = false;
+				}
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static boolean isWhitespace(char c) {
+		return (CharClass.of(c) & CharClass.WHITESPACE) != 0;
+	}
+
+	/**
+	 * Mixes the type and value of {@code node} into {@code hash}. Types are mixed by name
+	 * rather than ordinal, so that new types do not change existing fingerprints.
+	 */
+	private static long fingerprint(long hash, Node node) {
+		if (node instanceof FieldNode) {
+			hash = mix(hash, TokenType.FIELD.name());
+			hash = mix(hash, ((FieldNode) node).name());
+			return mix(hash, node.value());
+		}
+		hash = mix(hash, ((TokenNode) node).type().name());
+		return mix(hash, node.value());
+	}
+
+	private static long mix(long hash, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			hash = mix(hash, value.charAt(i));
+		}
+		return mix(hash, SEPARATOR);
+	}
+
+	private static long mix(long hash, int value) {
+		return (hash ^ value) * FNV_PRIME;
+	}
+
+	/**
+	 * Final avalanche of MurmurHash3, so that every bit of the fingerprint depends on the
+	 * whole query, e.g. when sharding by its low bits.
+	 */
+	private static long fmix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * A group being canonicalized, whose canonical children are collected until it is
+	 * complete.
+	 */
+	private static final class Frame {
+
+		/**
+		 * The child that was unwrapped into {@link #group}, or the group itself.
+		 */
+		private final Node original;
+
+		private final RootNode group;
+
+		private final Iterator<Node> children;
+
+		private final List<Node> canonical;
+
+		private boolean changed;
+
+		Frame(Node original, RootNode group) {
+			this.original = original;
+			this.group = group;
+			this.children = group.children().iterator();
+			this.canonical = new ArrayList<>(group.children().size());
+		}
+
+		void add(Node original, Node canonical) {
+			this.canonical.add(canonical);
+			this.changed |= (original != canonical);
+		}
+
+		/**
+		 * Returns the canonical group, which is the original one if it is frozen and none
+		 * of its children changed.
+		 */
+		RootNode build() {
+			if (!this.changed && this.group.isFrozen()) {
+				return this.group;
+			}
+			return new RootNode(this.canonical.toArray(new Node[0]));
+		}
+
+	}
+
+}
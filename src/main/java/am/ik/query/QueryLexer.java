@@ -1,87 +1,462 @@
 package am.ik.query;
 
-import java.util.LinkedList;
-import java.util.List;
-
-public class QueryLexer {
-
-	public static List<Token> tokenize(String input) {
-		List<Token> tokens = new LinkedList<>();
-		int length = input.length();
-		for (int i = 0; i < length;) {
-			char current = input.charAt(i);
-			if (Character.isWhitespace(current)) {
-				int start = i;
-				while (i < length && Character.isWhitespace(input.charAt(i))) {
-					i++;
-				}
-				tokens.add(new Token(TokenType.WHITESPACE, input.substring(start, i)));
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * Pull-based lexer. Tokens are scanned one at a time as {@link #advance()} or
+ * {@link #next()} is called, so callers that stop early never lex the rest of the input.
+ * <p>
+ * Input can be any {@link CharSequence} (optionally restricted to a range) or a
+ * {@link Reader} that is consumed in chunks as tokens are requested. Token offsets are
+ * always relative to the source.
+ */
+public class QueryLexer implements TokenCursor, Iterator<Token> {
+
+	private static final int INITIAL_READER_BUFFER_SIZE = 256;
+
+	private static final Reader NULL_READER = Reader.nullReader();
+
+	private static final char[] EMPTY_BUFFER = new char[0];
+
+	private CharSequence input;
+
+	private int length;
+
+	private Reader reader;
+
+	private DelimiterIndex index;
+
+	private char[] buffer;
+
+	private boolean eof;
+
+	private int position;
+
+	/**
+	 * Offset beyond which a {@link Reader} is no longer read.
+	 */
+	private int lengthLimit = Integer.MAX_VALUE;
+
+	/**
+	 * Start of the run of characters without whitespace or parens that ends with the
+	 * token just scanned, or before it if it is a paren. A hyphenated keyword begins
+	 * there, so the lexer never scans backwards.
+	 */
+	private int wordStart;
+
+	private TokenType type = TokenType.WHITESPACE;
+
+	private int start;
+
+	private int end;
+
+	/**
+	 * Offset of the {@code =} in the current {@link TokenType#FIELD} token.
+	 */
+	private int separator;
+
+	private TermDictionary dictionary = TermDictionary.NONE;
+
+	public QueryLexer(CharSequence input) {
+		this(input, 0, input.length());
+	}
+
+	/**
+	 * Lexes {@code input}, taking token values from {@code dictionary}, so that values of
+	 * known terms are shared instead of copied. The dictionary is kept by
+	 * {@link #reset(CharSequence)}.
+	 */
+	public QueryLexer(CharSequence input, TermDictionary dictionary) {
+		this(input);
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * Lexes {@code input} from {@code start} (inclusive) to {@code end} (exclusive)
+	 * without copying the range. Token offsets are relative to {@code input}. A
+	 * {@link CharBuffer} is read relative to its position at construction time, and its
+	 * own position and limit are left untouched.
+	 */
+	public QueryLexer(CharSequence input, int start, int end) {
+		Objects.checkFromToIndex(start, end, input.length());
+		this.input = (input instanceof CharBuffer) ? ((CharBuffer) input).duplicate() : input;
+		this.length = end;
+		this.position = start;
+		this.wordStart = start;
+		this.reader = NULL_READER;
+		this.buffer = EMPTY_BUFFER;
+		this.eof = true;
+		this.index = DelimiterIndex.of(this.input, start, end);
+	}
+
+	/**
+	 * Lexes {@code input} from {@code start} to {@code end}, taking token values from
+	 * {@code dictionary}.
+	 */
+	QueryLexer(CharSequence input, int start, int end, TermDictionary dictionary) {
+		this(input, start, end);
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * Lexes the whole of {@code input} with the given delimiter index, which is
+	 * {@link DelimiterIndex#NONE} to scan char by char.
+	 */
+	QueryLexer(CharSequence input, DelimiterIndex index) {
+		this.input = input;
+		this.length = input.length();
+		this.reader = NULL_READER;
+		this.buffer = EMPTY_BUFFER;
+		this.eof = true;
+		this.index = index;
+	}
+
+	/**
+	 * Lexes {@code reader}, reading more characters only when the next token needs them.
+	 * I/O errors are rethrown as {@link UncheckedIOException}.
+	 */
+	public QueryLexer(Reader reader) {
+		this.buffer = new char[INITIAL_READER_BUFFER_SIZE];
+		this.input = CharBuffer.wrap(this.buffer);
+		this.length = 0;
+		this.reader = reader;
+		this.eof = false;
+		this.index = DelimiterIndex.NONE;
+	}
+
+	/**
+	 * Restarts lexing at the beginning of {@code input}, keeping the buffers of this
+	 * lexer. Tokens handed out earlier are not affected.
+	 */
+	public QueryLexer reset(CharSequence input) {
+		this.input = (input instanceof CharBuffer) ? ((CharBuffer) input).duplicate() : input;
+		this.length = input.length();
+		this.reader = NULL_READER;
+		this.buffer = EMPTY_BUFFER;
+		this.eof = true;
+		this.position = 0;
+		this.wordStart = 0;
+		this.type = TokenType.WHITESPACE;
+		this.start = 0;
+		this.end = 0;
+		this.lengthLimit = Integer.MAX_VALUE;
+		this.index = this.index.reset(this.input, 0, this.length);
+		return this;
+	}
+
+	public static TokenStream tokenize(CharSequence input) {
+		return tokenize(new QueryLexer(input));
+	}
+
+	public static TokenStream tokenize(Reader reader) {
+		return tokenize(new QueryLexer(reader));
+	}
+
+	private static TokenStream tokenize(QueryLexer lexer) {
+		TokenStream tokens = new TokenStream();
+		while (lexer.hasNext()) {
+			tokens.add(lexer.next());
+		}
+		return tokens;
+	}
+
+	@Override
+	public boolean advance() {
+		if (!has(this.position)) {
+			return false;
+		}
+		scan();
+		if (joinsHyphen(this.position)) {
+			scanHyphenated(this.position);
+		}
+		return true;
+	}
+
+	@Override
+	public TokenType type() {
+		return this.type;
+	}
+
+	@Override
+	public int start() {
+		return this.start;
+	}
+
+	@Override
+	public int end() {
+		return this.end;
+	}
+
+	@Override
+	public String value() {
+		return string(this.start, this.end);
+	}
+
+	@Override
+	public String fieldName() {
+		return string(this.start, this.separator);
+	}
+
+	@Override
+	public String fieldValue() {
+		return string(this.separator + 1, this.end);
+	}
+
+	private String string(int start, int end) {
+		if (this.dictionary != TermDictionary.NONE) {
+			return this.dictionary.intern(this.input, start, end);
+		}
+		return this.input.subSequence(start, end).toString();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return has(this.position);
+	}
+
+	@Override
+	public Token next() {
+		if (!advance()) {
+			throw new NoSuchElementException();
+		}
+		return new Token(this.type, this.input, this.start, this.end);
+	}
+
+	int position() {
+		return this.position;
+	}
+
+	/**
+	 * Limits the input to {@code maxLength} characters from the current position and
+	 * returns the offset where it then ends. A {@link Reader} is no longer read once it
+	 * has returned more than that, so the input ends early.
+	 */
+	int limitLength(int maxLength) {
+		this.lengthLimit = (int) Math.min(Integer.MAX_VALUE, (long) this.position + maxLength);
+		return this.lengthLimit;
+	}
+
+	/**
+	 * Whether the input is longer than allowed by {@link #limitLength(int)}.
+	 */
+	boolean exceedsLength() {
+		return this.length > this.lengthLimit;
+	}
+
+	/**
+	 * The characters read so far, at the same offsets as in the source.
+	 */
+	CharSequence input() {
+		return this.input;
+	}
+
+	TermDictionary dictionary() {
+		return this.dictionary;
+	}
+
+	/**
+	 * Whether the current token is a phrase without a closing quote. Its value then lacks
+	 * the last character of the input, where the closing quote would have been.
+	 */
+	boolean isUnterminatedPhrase() {
+		return this.type == TokenType.PHRASE && (this.start > this.end || this.input.charAt(this.end) != '"');
+	}
+
+	/**
+	 * Value of an unterminated phrase up to the end of the input.
+	 */
+	String unterminatedValue() {
+		return string(this.start, this.position);
+	}
+
+	private void scan() {
+		int i = this.position;
+		if (this.type == TokenType.LPAREN || this.type == TokenType.RPAREN) {
+			// only now, as a hyphen right after a paren joins the word before the paren
+			this.wordStart = i;
+		}
+		int current = CharClass.of(charAt(i));
+		if ((current & CharClass.WHITESPACE) != 0) {
+			int start = i;
+			i = skipWhile(i + 1, CharClass.WHITESPACE);
+			this.wordStart = i;
+			emit(TokenType.WHITESPACE, start, i, i);
+		}
+		else if ((current & CharClass.QUOTE) != 0) {
+			int start = i;
+			i = skipPhrase(i + 1);
+			if (has(i)) {
+				i++; // consume closing "
 			}
-			else if (current == '"') {
-				int start = i++;
-				while (i < length && input.charAt(i) != '"') {
-					i++;
-				}
-				if (i < length) {
-					i++; // consume closing "
-				}
-				tokens.add(new Token(TokenType.PHRASE, input.substring(start + 1, i - 1)));
+			emit(TokenType.PHRASE, start + 1, i - 1, i);
+		}
+		else if ((current & CharClass.HYPHEN) != 0) {
+			// ends at whitespace or the end of input, so never joins a hyphen and
+			// leaves wordStart to the whitespace that follows
+			int start = i;
+			i = skipUntil(i + 1, CharClass.KEYWORD_END);
+			TokenType type = TokenType.EXCLUDE;
+			if (i > start + 1 && has(i) && charAt(i) == '=') {
+				type = TokenType.EXCLUDED_FIELD;
+				this.separator = i;
 			}
-			else if (current == '-') {
-				if (i > 0 && !Character.isWhitespace(input.charAt(i - 1))
-						&& (Character.isLetterOrDigit(input.charAt(i + 1)) || input.charAt(i + 1) == '"')) {
-					int start = i - 1;
-					while (start > 0 && !Character.isWhitespace(input.charAt(start - 1))
-							&& input.charAt(start - 1) != '(' && input.charAt(start - 1) != ')') {
-						start--;
-					}
-					while (i < length && !Character.isWhitespace(input.charAt(i)) && input.charAt(i) != '('
-							&& input.charAt(i) != ')') {
-						i++;
-					}
-					tokens.remove(tokens.size() - 1);
-					tokens.add(new Token(TokenType.KEYWORD, input.substring(start, i)));
-				}
-				else {
-					int start = i++;
-					while (i < length && !Character.isWhitespace(input.charAt(i))) {
-						i++;
-					}
-					tokens.add(new Token(TokenType.EXCLUDE, input.substring(start + 1, i)));
-				}
+			i = skipUntil(i, CharClass.WHITESPACE);
+			emit(type, start + 1, i, i);
+		}
+		else if ((current & CharClass.PAREN) != 0) {
+			emit(charAt(i) == '(' ? TokenType.LPAREN : TokenType.RPAREN, i, i + 1, i + 1);
+		}
+		else {
+			int start = i;
+			i = skipUntil(i, CharClass.KEYWORD_END);
+			TokenType type = isOr(this.input, start, i) ? TokenType.OR : TokenType.KEYWORD;
+			if (has(i) && charAt(i) == '=') {
+				// a field needs a name, so a leading '=' starts a keyword
+				type = (i > start) ? TokenType.FIELD : TokenType.KEYWORD;
+				this.separator = i;
+				i = skipUntil(i + 1, CharClass.WORD_END);
 			}
-			else if (current == '(') {
-				tokens.add(new Token(TokenType.LPAREN, String.valueOf(current)));
+			emit(type, start, i, i);
+		}
+	}
+
+	/**
+	 * Whether the hyphen at {@code i} glues the token just scanned and the following
+	 * characters into a single keyword such as {@code hello-world}. Only whitespace
+	 * tokens end with whitespace, so no character before {@code i} is read again.
+	 */
+	private boolean joinsHyphen(int i) {
+		if (this.type == TokenType.WHITESPACE || !has(i + 1) || charAt(i) != '-') {
+			return false;
+		}
+		char next = charAt(i + 1);
+		return next == '"' || CharClass.isLetterOrDigit(next);
+	}
+
+	/**
+	 * Replaces the token just scanned with the hyphenated keyword around {@code i}, which
+	 * starts at {@link #wordStart}.
+	 */
+	private void scanHyphenated(int i) {
+		int start = this.wordStart;
+		if (this.type == TokenType.LPAREN || this.type == TokenType.RPAREN) {
+			// the paren becomes part of the keyword but still ends the word before it
+			this.wordStart = i;
+		}
+		i = skipUntil(i, CharClass.WORD_END);
+		emit(TokenType.KEYWORD, start, i, i);
+	}
+
+	/**
+	 * Returns the index of the quote closing a phrase, or the end of input, moving
+	 * {@link #wordStart} past whitespace and parens inside the phrase.
+	 */
+	private int skipPhrase(int i) {
+		int classes = CharClass.QUOTE | CharClass.WORD_END;
+		i = skipUntil(i, classes);
+		while (has(i) && charAt(i) != '"') {
+			this.wordStart = i + 1;
+			i = skipUntil(i + 1, classes);
+		}
+		return i;
+	}
+
+	/**
+	 * Returns the first index from {@code i} whose character has none of the
+	 * {@code classes}, or the end of input.
+	 */
+	private int skipWhile(int i, int classes) {
+		do {
+			CharSequence input = this.input;
+			int length = this.length;
+			while (i < length && (CharClass.of(input.charAt(i)) & classes) != 0) {
 				i++;
 			}
-			else if (current == ')') {
-				tokens.add(new Token(TokenType.RPAREN, String.valueOf(current)));
+		}
+		while (i == this.length && has(i));
+		return i;
+	}
+
+	/**
+	 * Returns the first index from {@code i} whose character has one of the
+	 * {@code classes}, or the end of input.
+	 */
+	private int skipUntil(int i, int classes) {
+		DelimiterIndex index = this.index;
+		if (index != DelimiterIndex.NONE) {
+			int p = index.next(i);
+			while (p < this.length && (CharClass.of(this.input.charAt(p)) & classes) == 0) {
+				p = index.next(p + 1);
+			}
+			return p;
+		}
+		do {
+			CharSequence input = this.input;
+			int length = this.length;
+			while (i < length && (CharClass.of(input.charAt(i)) & classes) == 0) {
 				i++;
 			}
-			else {
-				int start = i;
-				while (i < length && !Character.isWhitespace(input.charAt(i)) && input.charAt(i) != '"'
-						&& input.charAt(i) != '-' && input.charAt(i) != '(' && input.charAt(i) != ')'
-						&& input.charAt(i) != '=') {
-					i++;
-				}
-				if (i < length && input.charAt(i) == '=') {
-					do {
-						i++;
-					}
-					while (i < length && !Character.isWhitespace(input.charAt(i)) && input.charAt(i) != '('
-							&& input.charAt(i) != ')');
+		}
+		while (i == this.length && has(i));
+		return i;
+	}
+
+	private void emit(TokenType type, int start, int end, int position) {
+		this.type = type;
+		this.start = start;
+		this.end = end;
+		this.position = position;
+	}
+
+	private char charAt(int i) {
+		return this.input.charAt(i);
+	}
+
+	private boolean has(int i) {
+		return i < this.length || (!this.eof && fill(i));
+	}
+
+	private boolean fill(int i) {
+		try {
+			while (i >= this.length) {
+				if (this.length > this.lengthLimit) {
+					this.eof = true;
+					return false;
 				}
-				String value = input.substring(start, i);
-				if (value.equalsIgnoreCase("OR")) {
-					tokens.add(new Token(TokenType.OR, value));
+				if (this.length == this.buffer.length) {
+					this.buffer = Arrays.copyOf(this.buffer, this.buffer.length << 1);
+					// tokens handed out earlier keep the previous array, which is never
+					// written again
+					this.input = CharBuffer.wrap(this.buffer);
 				}
-				else {
-					tokens.add(new Token(TokenType.KEYWORD, value));
+				int read = this.reader.read(this.buffer, this.length, this.buffer.length - this.length);
+				if (read < 0) {
+					this.eof = true;
+					return false;
 				}
+				this.length += read;
 			}
+			return true;
 		}
-		return tokens;
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	static boolean isOr(CharSequence input, int start, int end) {
+		if (end - start != 2) {
+			return false;
+		}
+		char o = input.charAt(start);
+		char r = input.charAt(start + 1);
+		return (o == 'o' || o == 'O') && (r == 'r' || r == 'R');
 	}
 
 }
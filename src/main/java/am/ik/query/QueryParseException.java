@@ -0,0 +1,22 @@
+package am.ik.query;
+
+/**
+ * Thrown when a query cannot be parsed within the parser's limits.
+ */
+public class QueryParseException extends RuntimeException {
+
+	private final int offset;
+
+	public QueryParseException(String message, int offset) {
+		super(message + " at offset " + offset);
+		this.offset = offset;
+	}
+
+	/**
+	 * Offset in the source of the token that failed the parse.
+	 */
+	public int offset() {
+		return this.offset;
+	}
+
+}
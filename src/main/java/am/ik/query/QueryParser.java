@@ -1,51 +1,705 @@
 package am.ik.query;
 
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 
 public class QueryParser {
 
-	private final List<Token> tokens;
+	/**
+	 * Default for the maximum nesting depth of groups, which is unbounded.
+	 */
+	public static final int UNLIMITED_DEPTH = Integer.MAX_VALUE;
 
-	private int position;
+	private TokenCursor tokens;
 
-	public QueryParser(List<Token> tokens) {
+	private final int maxDepth;
+
+	/**
+	 * Depth and tokens allowed by the current parse.
+	 */
+	private int depthLimit;
+
+	private int tokenLimit = Integer.MAX_VALUE;
+
+	/**
+	 * Length allowed from the start of the first token, for cursors other than the
+	 * lexers, which limit the length themselves.
+	 */
+	private int lengthLimit = Integer.MAX_VALUE;
+
+	/**
+	 * Whether reading the term after {@code maxTerms} terms is reported as
+	 * {@link Diagnostic.Kind#TOO_MANY_TERMS}, rather than stopping the parse.
+	 */
+	private boolean termLimited;
+
+	private static final Node[] NO_CHILDREN = {};
+
+	/**
+	 * Children parsed so far for each of the open groups, outermost first, reused across
+	 * parses. Groups are created with an exact-size copy of their children once they are
+	 * closed.
+	 */
+	private Node[] children = new Node[16];
+
+	private int count;
+
+	/**
+	 * Index in {@link #children} where the children of each open group start.
+	 */
+	private int[] starts = new int[16];
+
+	/**
+	 * Whether groups are closed into boolean nodes rather than {@link RootNode}s.
+	 */
+	private boolean booleans;
+
+	/**
+	 * Whether problems are recorded in {@link #diagnostics} instead of failing the parse.
+	 */
+	private boolean lenient;
+
+	/**
+	 * Offset of the first problem of each {@link Diagnostic.Kind} in a lenient parse.
+	 */
+	private final EnumMap<Diagnostic.Kind, Integer> diagnostics = new EnumMap<>(Diagnostic.Kind.class);
+
+	/**
+	 * Creates a parser for queries given to {@link #reset(CharSequence)}. A parser keeps
+	 * its lexer and scratch buffers between parses, so that parsing allocates little more
+	 * than the resulting tree. Parsers are not thread-safe and are meant to be kept per
+	 * worker thread or pooled.
+	 */
+	public QueryParser() {
+		this(UNLIMITED_DEPTH);
+	}
+
+	/**
+	 * Creates a reusable parser, like {@link #QueryParser()}, that throws a
+	 * {@link QueryParseException} as soon as groups are nested deeper than
+	 * {@code maxDepth}.
+	 */
+	public QueryParser(int maxDepth) {
+		this(new QueryLexer(""), maxDepth);
+	}
+
+	public QueryParser(TokenCursor tokens) {
+		this(tokens, UNLIMITED_DEPTH);
+	}
+
+	/**
+	 * Creates a parser that throws a {@link QueryParseException} as soon as groups are
+	 * nested deeper than {@code maxDepth}.
+	 */
+	public QueryParser(TokenCursor tokens, int maxDepth) {
+		if (maxDepth < 0) {
+			throw new IllegalArgumentException("maxDepth must not be negative: " + maxDepth);
+		}
 		this.tokens = tokens;
-		this.position = 0;
+		this.maxDepth = maxDepth;
+		this.depthLimit = maxDepth;
+	}
+
+	public QueryParser(TokenStream tokens) {
+		this(tokens.cursor());
+	}
+
+	public QueryParser(PackedTokens tokens) {
+		this(tokens.cursor());
+	}
+
+	public QueryParser(List<Token> tokens) {
+		this(TokenStream.copyOf(tokens));
+	}
+
+	/**
+	 * Replaces the tokens to parse with those of {@code query}, reusing the lexer of this
+	 * parser if it has one.
+	 */
+	public QueryParser reset(CharSequence query) {
+		if (this.tokens instanceof QueryLexer) {
+			((QueryLexer) this.tokens).reset(query);
+		}
+		else {
+			this.tokens = new QueryLexer(query);
+		}
+		return this;
 	}
 
 	public RootNode parse() {
-		return parseExpression(new RootNode());
-	}
-
-	private RootNode parseExpression(RootNode node) {
-		while (position < tokens.size()) {
-			Token token = tokens.get(position);
-			switch (token.type()) {
-				case PHRASE:
-				case EXCLUDE:
-				case KEYWORD:
-				case OR:
-					node.children().add(new TokenNode(token.type(), token.value()));
-					position++;
-					break;
-				case LPAREN:
-					position++;
-					node.children().add(parseExpression(new RootNode()));
-					break;
-				case RPAREN:
-					position++;
-					return node;
-				case WHITESPACE:
-					position++;
+		return parse(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Parses until {@code maxTerms} terms have been read. Tokens after the last term are
+	 * not pulled from the underlying cursor.
+	 */
+	public RootNode parse(int maxTerms) {
+		return (RootNode) parse(maxTerms, false, false);
+	}
+
+	/**
+	 * Parses without throwing on malformed queries, returning the best-effort tree with
+	 * the first problem of each {@link Diagnostic.Kind}:
+	 * <ul>
+	 * <li>phrases without a closing quote extend to the end of the input, and a lone
+	 * trailing quote is dropped;</li>
+	 * <li>unmatched {@code )} are skipped instead of ending the parse;</li>
+	 * <li>unclosed groups end with the input;</li>
+	 * <li>groups nested deeper than the maximum depth are merged into their parent.</li>
+	 * </ul>
+	 * Unterminated phrases other than a lone trailing quote are only detected when
+	 * parsing with a {@link QueryLexer} or {@link Utf8QueryLexer}.
+	 */
+	public ParseResult parseLenient() {
+		this.diagnostics.clear();
+		RootNode root = (RootNode) parse(Integer.MAX_VALUE, false, true);
+		return new ParseResult(root, diagnostics());
+	}
+
+	/**
+	 * Parses like {@link #parseLenient()} within {@code limits}. A query that exceeds the
+	 * input length, token or term limit is rejected as soon as that is detected, with an
+	 * empty root and a single diagnostic for the limit, so the work done is proportional
+	 * to the limits. Groups nested deeper than the smaller of the parser's and the
+	 * limits' maximum depth are merged into their parent. The diagnostics are also
+	 * counted in {@code limits}.
+	 * <p>
+	 * With a {@link QueryLexer}, a {@link Reader} is read no further than just past the
+	 * length limit. A {@link Utf8QueryLexer} is checked before lexing, and its length is
+	 * counted in bytes. Other token sources are already tokenized, so their length is
+	 * checked against the offsets of the tokens, from where the first token starts.
+	 */
+	public ParseResult parse(ParseLimits limits) {
+		this.diagnostics.clear();
+		ParseResult result = parseWithin(limits);
+		for (Diagnostic diagnostic : result.diagnostics()) {
+			limits.record(diagnostic);
+		}
+		return result;
+	}
+
+	private ParseResult parseWithin(ParseLimits limits) {
+		int lengthLimit = limits.maxInputLength();
+		if (this.tokens instanceof QueryLexer) {
+			QueryLexer lexer = (QueryLexer) this.tokens;
+			lengthLimit = lexer.limitLength(lengthLimit);
+			if (lexer.exceedsLength()) {
+				return reject(Diagnostic.Kind.INPUT_TOO_LONG, lengthLimit);
+			}
+		}
+		else if (this.tokens instanceof Utf8QueryLexer) {
+			Utf8QueryLexer lexer = (Utf8QueryLexer) this.tokens;
+			lengthLimit = lexer.limitLength(lengthLimit);
+			if (lexer.exceedsLength()) {
+				return reject(Diagnostic.Kind.INPUT_TOO_LONG, lengthLimit);
+			}
+		}
+		else {
+			this.lengthLimit = lengthLimit;
+		}
+		this.depthLimit = Math.min(this.maxDepth, limits.maxDepth());
+		this.tokenLimit = limits.maxTokens();
+		this.termLimited = limits.maxTerms() < ParseLimits.UNLIMITED;
+		RootNode root;
+		try {
+			root = (RootNode) parse(this.termLimited ? limits.maxTerms() + 1 : Integer.MAX_VALUE, false, true);
+		}
+		finally {
+			this.depthLimit = this.maxDepth;
+			this.tokenLimit = Integer.MAX_VALUE;
+			this.lengthLimit = Integer.MAX_VALUE;
+			this.termLimited = false;
+		}
+		if (this.tokens instanceof QueryLexer && ((QueryLexer) this.tokens).exceedsLength()) {
+			return reject(Diagnostic.Kind.INPUT_TOO_LONG, lengthLimit);
+		}
+		for (Map.Entry<Diagnostic.Kind, Integer> diagnostic : this.diagnostics.entrySet()) {
+			if (diagnostic.getKey().isRejecting()) {
+				return reject(diagnostic.getKey(), diagnostic.getValue());
+			}
+		}
+		return new ParseResult(root, diagnostics());
+	}
+
+	private static ParseResult reject(Diagnostic.Kind kind, int offset) {
+		return new ParseResult(new RootNode(NO_CHILDREN), List.of(new Diagnostic(kind, offset)));
+	}
+
+	private List<Diagnostic> diagnostics() {
+		List<Diagnostic> diagnostics = List.of();
+		for (Map.Entry<Diagnostic.Kind, Integer> diagnostic : this.diagnostics.entrySet()) {
+			if (diagnostics.isEmpty()) {
+				diagnostics = new ArrayList<>();
+			}
+			diagnostics.add(new Diagnostic(diagnostic.getKey(), diagnostic.getValue()));
+		}
+		if (diagnostics.size() > 1) {
+			diagnostics.sort(Comparator.comparingInt(Diagnostic::offset));
+		}
+		return diagnostics;
+	}
+
+	/**
+	 * Parses only the top level, recording each group as a range of the source that is
+	 * parsed on first access to its children and then cached. Groups are matched by
+	 * lexing without creating nodes, so the same exceptions are thrown as by
+	 * {@link #parse()}, and the groups hold the same nodes once parsed. Lazy groups are
+	 * immutable and safe to share between threads. Groups are parsed eagerly when the
+	 * tokens do not come from a {@link QueryLexer}.
+	 */
+	public RootNode parseLazy() {
+		if (!(this.tokens instanceof QueryLexer)) {
+			return parse();
+		}
+		QueryLexer lexer = (QueryLexer) this.tokens;
+		this.booleans = false;
+		this.lenient = false;
+		try {
+			while (lexer.advance()) {
+				TokenType type = lexer.type();
+				switch (type) {
+					case PHRASE:
+					case EXCLUDE:
+					case KEYWORD:
+					case OR:
+						add(new TokenNode(type, lexer.value()));
+						break;
+					case FIELD:
+						add(new FieldNode(lexer.fieldName(), lexer.fieldValue()));
+						break;
+					case EXCLUDED_FIELD:
+						add(new TokenNode(TokenType.EXCLUDE, lexer.value()));
+						break;
+					case LPAREN:
+						add(skipGroup(lexer));
+						break;
+					case RPAREN:
+						return (RootNode) close(0);
+					case WHITESPACE:
+						break;
+				}
+			}
+			return (RootNode) close(0);
+		}
+		finally {
+			Arrays.fill(this.children, 0, this.count, null);
+			this.count = 0;
+		}
+	}
+
+	/**
+	 * Lexes up to the {@code )} matching the {@code (} just read, or the end of input,
+	 * and returns a lazy group for the tokens in between.
+	 */
+	private RootNode skipGroup(QueryLexer lexer) {
+		if (this.maxDepth == 0) {
+			throw new QueryParseException("Groups are nested deeper than 0 levels", lexer.start());
+		}
+		int start = lexer.end();
+		int depth = 1;
+		while (lexer.advance()) {
+			TokenType type = lexer.type();
+			if (type == TokenType.LPAREN) {
+				if (depth == this.maxDepth) {
+					throw new QueryParseException("Groups are nested deeper than " + this.maxDepth + " levels",
+							lexer.start());
+				}
+				depth++;
+			}
+			else if (type == TokenType.RPAREN && --depth == 0) {
+				return lazyGroup(lexer, start, lexer.start());
+			}
+			else if (type == TokenType.PHRASE && lexer.start() > lexer.end()) {
+				// a lone trailing quote fails like it does when parsed eagerly
+				lexer.value();
+			}
+		}
+		return lazyGroup(lexer, start, lexer.position());
+	}
+
+	/**
+	 * Creates a lazy group for {@code [start, end)} of the lexer's input. Only strings
+	 * are known not to change, so the range of any other input is copied.
+	 */
+	private static RootNode lazyGroup(QueryLexer lexer, int start, int end) {
+		CharSequence input = lexer.input();
+		if (input instanceof String) {
+			return new RootNode(new LazyGroup((String) input, start, end, lexer.dictionary()), true);
+		}
+		String copy = input.subSequence(start, end).toString();
+		return new RootNode(new LazyGroup(copy, 0, copy.length(), lexer.dictionary()), true);
+	}
+
+	/**
+	 * Parses into a tree of {@link AndNode}, {@link OrNode}, {@link NotNode},
+	 * {@link TokenNode} and {@link FieldNode}, where AND binds tighter than OR:
+	 * {@code a b or c} is {@code (a AND b) OR c}. Adjacent terms are ANDed and excluded
+	 * terms become {@link NotNode}s of keywords, or of fields for {@code -name=value}.
+	 * Nested operators of the same kind are merged, operators with a single operand are
+	 * replaced by it, and empty groups and dangling ORs are dropped. A query without
+	 * terms is an empty {@link AndNode}.
+	 */
+	public Node parseBoolean() {
+		return parse(Integer.MAX_VALUE, true, false);
+	}
+
+	private Node parse(int maxTerms, boolean booleans, boolean lenient) {
+		if (maxTerms < 0) {
+			throw new IllegalArgumentException("maxTerms must not be negative: " + maxTerms);
+		}
+		this.booleans = booleans;
+		this.lenient = lenient;
+		TokenCursor tokens = this.tokens;
+		int depth = 0;
+		int ignoredParens = 0;
+		int outermostOpen = 0;
+		int remainingTerms = maxTerms;
+		int remainingTokens = this.tokenLimit;
+		boolean checkLength = this.lengthLimit < Integer.MAX_VALUE;
+		int origin = -1;
+		try {
+			while (remainingTerms > 0 && tokens.advance()) {
+				if (--remainingTokens < 0) {
+					report(Diagnostic.Kind.TOO_MANY_TOKENS, tokens.start());
 					break;
+				}
+				if (checkLength) {
+					if (origin < 0) {
+						origin = tokenStart(tokens);
+					}
+					if (tokens.end() - origin > this.lengthLimit) {
+						report(Diagnostic.Kind.INPUT_TOO_LONG, origin + this.lengthLimit);
+						break;
+					}
+				}
+				TokenType type = tokens.type();
+				switch (type) {
+					case PHRASE:
+						if (this.lenient && isUnterminatedPhrase(tokens)) {
+							report(Diagnostic.Kind.UNTERMINATED_QUOTE, tokens.start() - 1);
+							String value = unterminatedValue(tokens);
+							if (!value.isEmpty()) {
+								add(new TokenNode(type, value));
+								remainingTerms--;
+							}
+							break;
+						}
+						add(new TokenNode(type, tokens.value()));
+						remainingTerms--;
+						break;
+					case EXCLUDE:
+					case KEYWORD:
+						add(new TokenNode(type, tokens.value()));
+						remainingTerms--;
+						break;
+					case FIELD:
+						add(new FieldNode(tokens.fieldName(), tokens.fieldValue()));
+						remainingTerms--;
+						break;
+					case EXCLUDED_FIELD:
+						// exclusions are plain tokens unless they become NOT nodes
+						add(this.booleans ? new NotNode(new FieldNode(tokens.fieldName(), tokens.fieldValue()))
+								: new TokenNode(TokenType.EXCLUDE, tokens.value()));
+						remainingTerms--;
+						break;
+					case OR:
+						add(new TokenNode(type, tokens.value()));
+						break;
+					case LPAREN:
+						if (depth == this.depthLimit) {
+							if (!this.lenient) {
+								throw new QueryParseException(
+										"Groups are nested deeper than " + this.depthLimit + " levels", tokens.start());
+							}
+							report(Diagnostic.Kind.NESTING_TOO_DEEP, tokens.start());
+							ignoredParens++;
+							break;
+						}
+						if (depth == 0) {
+							outermostOpen = tokens.start();
+						}
+						open(depth++);
+						break;
+					case RPAREN:
+						if (ignoredParens > 0) {
+							ignoredParens--;
+							break;
+						}
+						if (depth == 0) {
+							if (!this.lenient) {
+								return close(0);
+							}
+							report(Diagnostic.Kind.UNMATCHED_CLOSE_PAREN, tokens.start());
+							break;
+						}
+						add(close(depth--));
+						break;
+					case WHITESPACE:
+						break;
+				}
 			}
+			if (remainingTerms == 0 && this.termLimited) {
+				report(Diagnostic.Kind.TOO_MANY_TERMS, tokens.start());
+			}
+			if (depth > 0 && this.lenient) {
+				report(Diagnostic.Kind.UNCLOSED_GROUP, outermostOpen);
+			}
+			while (depth > 0) {
+				add(close(depth--));
+			}
+			return close(0);
+		}
+		finally {
+			Arrays.fill(this.children, 0, this.count, null);
+			this.count = 0;
+		}
+	}
+
+	/**
+	 * Offset where the current token starts in the source, including the quote of a
+	 * phrase and the hyphen of an exclusion.
+	 */
+	private static int tokenStart(TokenCursor tokens) {
+		TokenType type = tokens.type();
+		boolean prefixed = type == TokenType.PHRASE || type == TokenType.EXCLUDE || type == TokenType.EXCLUDED_FIELD;
+		return prefixed ? tokens.start() - 1 : tokens.start();
+	}
+
+	/**
+	 * Whether the current {@link TokenType#PHRASE} has no closing quote. Only lexers know
+	 * that, other token sources only mark a lone trailing quote by a start after the end.
+	 */
+	private static boolean isUnterminatedPhrase(TokenCursor tokens) {
+		if (tokens instanceof QueryLexer) {
+			return ((QueryLexer) tokens).isUnterminatedPhrase();
+		}
+		if (tokens instanceof Utf8QueryLexer) {
+			return ((Utf8QueryLexer) tokens).isUnterminatedPhrase();
+		}
+		return tokens.start() > tokens.end();
+	}
+
+	/**
+	 * Value of the current phrase without a closing quote, which extends to the end of
+	 * the input.
+	 */
+	private static String unterminatedValue(TokenCursor tokens) {
+		if (tokens instanceof QueryLexer) {
+			return ((QueryLexer) tokens).unterminatedValue();
+		}
+		if (tokens instanceof Utf8QueryLexer) {
+			return ((Utf8QueryLexer) tokens).unterminatedValue();
+		}
+		return "";
+	}
+
+	private void report(Diagnostic.Kind kind, int offset) {
+		this.diagnostics.putIfAbsent(kind, offset);
+	}
+
+	private void add(Node node) {
+		if (this.count == this.children.length) {
+			this.children = Arrays.copyOf(this.children, this.count + (this.count >> 1) + 1);
+		}
+		this.children[this.count++] = node;
+	}
+
+	/**
+	 * Opens the group at {@code depth + 1}, where {@code 0} is the root.
+	 */
+	private void open(int depth) {
+		if (depth + 1 == this.starts.length) {
+			this.starts = Arrays.copyOf(this.starts, depth + (depth >> 1) + 2);
+		}
+		this.starts[depth + 1] = this.count;
+	}
+
+	/**
+	 * Creates the group at {@code depth} from its children and removes them.
+	 */
+	private Node close(int depth) {
+		int start = (depth == 0) ? 0 : this.starts[depth];
+		if (this.booleans) {
+			Node group = resolve(start, this.count);
+			Arrays.fill(this.children, start, this.count, null);
+			this.count = start;
+			return group;
+		}
+		if (start == this.count) {
+			return new RootNode(NO_CHILDREN);
+		}
+		Node[] nodes = Arrays.copyOfRange(this.children, start, this.count);
+		Arrays.fill(this.children, start, this.count, null);
+		this.count = start;
+		return new RootNode(nodes);
+	}
+
+	/**
+	 * Combines the children from {@code start} to {@code end} into an OR of ANDs, whose
+	 * groups were already resolved when they were closed.
+	 */
+	private Node resolve(int start, int end) {
+		List<Node> alternatives = new ArrayList<>();
+		List<Node> terms = new ArrayList<>();
+		for (int i = start; i < end; i++) {
+			Node node = this.children[i];
+			if (node instanceof TokenNode && ((TokenNode) node).type() == TokenType.OR) {
+				addOperand(alternatives, terms);
+				terms.clear();
+			}
+			else if (node instanceof TokenNode && ((TokenNode) node).type() == TokenType.EXCLUDE) {
+				terms.add(new NotNode(new TokenNode(TokenType.KEYWORD, node.value())));
+			}
+			else if (node instanceof AndNode) {
+				terms.addAll(((AndNode) node).children());
+			}
+			else {
+				terms.add(node);
+			}
+		}
+		addOperand(alternatives, terms);
+		if (alternatives.size() == 1) {
+			return alternatives.get(0);
+		}
+		return alternatives.isEmpty() ? new AndNode(List.of()) : new OrNode(alternatives);
+	}
+
+	private static void addOperand(List<Node> alternatives, List<Node> terms) {
+		if (terms.size() > 1) {
+			alternatives.add(new AndNode(terms));
+		}
+		else if (terms.size() == 1 && terms.get(0) instanceof OrNode) {
+			alternatives.addAll(((OrNode) terms.get(0)).children());
 		}
-		return node;
+		else if (terms.size() == 1) {
+			alternatives.add(terms.get(0));
+		}
+	}
+
+	/**
+	 * Children of a group that are parsed from {@code [start, end)} of the source on
+	 * first access, with values taken from the dictionary of the original parse.
+	 */
+	private static final class LazyGroup extends AbstractList<Node> implements RandomAccess {
+
+		private static final List<Node> UNPARSED = new ArrayList<>(0);
+
+		private final String source;
+
+		private final int start;
+
+		private final int end;
+
+		private final TermDictionary dictionary;
+
+		private volatile List<Node> children = UNPARSED;
+
+		LazyGroup(String source, int start, int end, TermDictionary dictionary) {
+			this.source = source;
+			this.start = start;
+			this.end = end;
+			this.dictionary = dictionary;
+		}
+
+		private List<Node> children() {
+			List<Node> children = this.children;
+			if (children == UNPARSED) {
+				// racing threads parse the same immutable nodes, so either result is
+				// fine
+				QueryLexer lexer = new QueryLexer(this.source, this.start, this.end, this.dictionary);
+				children = new QueryParser(lexer).parseLazy().children();
+				this.children = children;
+			}
+			return children;
+		}
+
+		@Override
+		public Node get(int index) {
+			return children().get(index);
+		}
+
+		@Override
+		public int size() {
+			return children().size();
+		}
+
+	}
+
+	public static RootNode parseQuery(CharSequence query) {
+		QueryParser queryParser = new QueryParser(new QueryLexer(query));
+		return queryParser.parse();
+	}
+
+	public static RootNode parseQuery(CharSequence query, int maxTerms) {
+		QueryParser queryParser = new QueryParser(new QueryLexer(query));
+		return queryParser.parse(maxTerms);
+	}
+
+	/**
+	 * Parses {@code query} with values taken from {@code dictionary}, so that trees of
+	 * different queries share the values of their common terms.
+	 */
+	public static RootNode parseQuery(CharSequence query, TermDictionary dictionary) {
+		QueryParser queryParser = new QueryParser(new QueryLexer(query, dictionary));
+		return queryParser.parse();
+	}
+
+	public static RootNode parseQuery(Reader query) {
+		QueryParser queryParser = new QueryParser(new QueryLexer(query));
+		return queryParser.parse();
+	}
+
+	/**
+	 * Parses {@code query} into a boolean tree as described in {@link #parseBoolean()}.
+	 */
+	public static Node parseBooleanQuery(CharSequence query) {
+		QueryParser queryParser = new QueryParser(new QueryLexer(query));
+		return queryParser.parseBoolean();
+	}
+
+	/**
+	 * Parses {@code query} without throwing on malformed input as described in
+	 * {@link #parseLenient()}.
+	 */
+	public static ParseResult parseLenientQuery(CharSequence query) {
+		QueryParser queryParser = new QueryParser(new QueryLexer(query));
+		return queryParser.parseLenient();
+	}
+
+	/**
+	 * Parses {@code query} within {@code limits} as described in
+	 * {@link #parse(ParseLimits)}.
+	 */
+	public static ParseResult parseQueryWithin(CharSequence query, ParseLimits limits) {
+		QueryParser queryParser = new QueryParser(new QueryLexer(query));
+		return queryParser.parse(limits);
+	}
+
+	/**
+	 * Parses {@code query} with lazily parsed groups as described in
+	 * {@link #parseLazy()}.
+	 */
+	public static RootNode parseLazyQuery(CharSequence query) {
+		QueryParser queryParser = new QueryParser(new QueryLexer(query));
+		return queryParser.parseLazy();
+	}
+
+	public static RootNode parseQuery(byte[] utf8Query) {
+		QueryParser queryParser = new QueryParser(new Utf8QueryLexer(utf8Query));
+		return queryParser.parse();
 	}
 
-	public static RootNode parseQuery(String query) {
-		List<Token> tokens = QueryLexer.tokenize(query);
-		QueryParser queryParser = new QueryParser(tokens);
+	public static RootNode parseQuery(ByteBuffer utf8Query) {
+		QueryParser queryParser = new QueryParser(new Utf8QueryLexer(utf8Query));
 		return queryParser.parse();
 	}
 
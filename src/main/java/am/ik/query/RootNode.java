@@ -1,11 +1,69 @@
 package am.ik.query;
 
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * A group of nodes. Groups built by {@link QueryParser} are frozen: their children are
+ * held in an exact-size array that cannot be modified, and their hash code is computed
+ * only once, so parsed trees can be cached and shared between threads. Groups created
+ * with {@link #RootNode()} are mutable until {@link #freeze() frozen}.
+ * <p>
+ * Groups are equal when their children are equal, whether they are frozen or not.
+ */
 public final class RootNode implements Node {
 
-	private final List<Node> children = new ArrayList<>();
+	private final List<Node> children;
+
+	private final boolean frozen;
+
+	/**
+	 * Hash code of a frozen group's children, computed on first use and cached, or
+	 * {@code 0} until then. Like {@link String#hashCode()}, the field is read once and
+	 * only ever changes from {@code 0} to the final value, so racing threads either see
+	 * that value or compute it again.
+	 */
+	private int hash;
+
+	/**
+	 * Whether the hash code was computed and is {@code 0}, which is only read after
+	 * {@link #hash} was.
+	 */
+	private boolean hashIsZero;
+
+	public RootNode() {
+		this(new ArrayList<>());
+	}
+
+	/**
+	 * Creates a group backed by {@code children}, which may be a read-only view.
+	 */
+	RootNode(List<Node> children) {
+		this(children, false);
+	}
+
+	/**
+	 * Creates a group backed by {@code children}, which is frozen if the list is
+	 * immutable and holds only frozen groups.
+	 */
+	RootNode(List<Node> children, boolean frozen) {
+		this.children = children;
+		this.frozen = frozen;
+	}
+
+	/**
+	 * Creates a frozen group that takes ownership of {@code children}, whose groups must
+	 * be frozen.
+	 */
+	RootNode(Node[] children) {
+		this.children = new Children(children);
+		this.frozen = true;
+	}
 
 	@Override
 	public String value() {
@@ -20,9 +78,156 @@ public final class RootNode implements Node {
 		return !this.children.isEmpty();
 	}
 
+	boolean isFrozen() {
+		return this.frozen;
+	}
+
+	/**
+	 * Returns a frozen group equal to this one, which is this group if it is already
+	 * frozen. Frozen subtrees are shared rather than copied.
+	 */
+	public RootNode freeze() {
+		if (this.frozen) {
+			return this;
+		}
+		// copy bottom-up without recursion, as groups can be nested arbitrarily deep
+		Deque<Iterator<Node>> iterators = new ArrayDeque<>();
+		Deque<List<Node>> copies = new ArrayDeque<>();
+		iterators.push(this.children.iterator());
+		copies.push(new ArrayList<>(this.children.size()));
+		while (true) {
+			Iterator<Node> iterator = iterators.peek();
+			if (iterator.hasNext()) {
+				Node child = iterator.next();
+				if (child instanceof RootNode && !((RootNode) child).frozen) {
+					List<Node> grandChildren = ((RootNode) child).children;
+					iterators.push(grandChildren.iterator());
+					copies.push(new ArrayList<>(grandChildren.size()));
+				}
+				else {
+					copies.peek().add(child);
+				}
+				continue;
+			}
+			iterators.pop();
+			RootNode group = new RootNode(copies.pop().toArray(new Node[0]));
+			if (iterators.isEmpty()) {
+				return group;
+			}
+			copies.peek().add(group);
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof RootNode)) {
+			return false;
+		}
+		// compare pairs of groups without recursion, as groups can be nested
+		// arbitrarily deep
+		Deque<RootNode> pending = new ArrayDeque<>();
+		pending.push(this);
+		pending.push((RootNode) obj);
+		while (!pending.isEmpty()) {
+			RootNode other = pending.pop();
+			RootNode group = pending.pop();
+			if (group == other) {
+				continue;
+			}
+			int hash = group.hash;
+			int otherHash = other.hash;
+			if ((hash != 0 && otherHash != 0 && hash != otherHash) || group.children.size() != other.children.size()) {
+				return false;
+			}
+			Iterator<Node> otherChildren = other.children.iterator();
+			for (Node child : group.children) {
+				Node otherChild = otherChildren.next();
+				if (child instanceof RootNode && otherChild instanceof RootNode) {
+					pending.push((RootNode) child);
+					pending.push((RootNode) otherChild);
+				}
+				else if (!child.equals(otherChild)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		if (!this.frozen) {
+			return this.children.hashCode();
+		}
+		int hash = this.hash;
+		if (hash == 0 && !this.hashIsZero) {
+			hash = hashFrozen();
+		}
+		return hash;
+	}
+
+	private boolean isHashed() {
+		return this.hash != 0 || this.hashIsZero;
+	}
+
+	/**
+	 * Computes the hash codes of this frozen group and its frozen subgroups bottom-up,
+	 * without recursion, and returns that of this group.
+	 */
+	private int hashFrozen() {
+		int hash = 0;
+		Deque<RootNode> pending = new ArrayDeque<>();
+		pending.push(this);
+		while (!pending.isEmpty()) {
+			RootNode group = pending.peek();
+			boolean ready = true;
+			for (Node child : group.children) {
+				if (child instanceof RootNode && ((RootNode) child).frozen && !((RootNode) child).isHashed()) {
+					pending.push((RootNode) child);
+					ready = false;
+				}
+			}
+			if (ready) {
+				pending.pop();
+				// the subgroups were hashed by this thread, so this does not recurse
+				hash = group.children.hashCode();
+				if (hash == 0) {
+					group.hashIsZero = true;
+				}
+				else {
+					group.hash = hash;
+				}
+			}
+		}
+		return hash;
+	}
+
 	@Override
 	public String toString() {
 		return RootNode.class.getSimpleName();
 	}
 
+	private static final class Children extends AbstractList<Node> implements RandomAccess {
+
+		private final Node[] nodes;
+
+		private Children(Node[] nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		public Node get(int index) {
+			return this.nodes[index];
+		}
+
+		@Override
+		public int size() {
+			return this.nodes.length;
+		}
+
+	}
+
 }
@@ -0,0 +1,218 @@
+package am.ik.query;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent dictionary of terms that gives every distinct term a single canonical
+ * {@link String} and a dense int id, so that trees kept in memory share their values.
+ * Lexers created with a dictionary look values up by their range of the input, so terms
+ * that are already known cost no allocation.
+ * <p>
+ * Terms are never removed, and their ids are stable. Once {@code maximumSize} terms are
+ * known, new terms are returned as fresh strings without an id, so that arbitrary input
+ * cannot grow the dictionary without bound.
+ */
+public final class TermDictionary {
+
+	/**
+	 * Returned by {@link #id(CharSequence)} for terms that are not in a full dictionary.
+	 */
+	public static final int NO_ID = -1;
+
+	/**
+	 * Placeholder for lexers without a dictionary.
+	 */
+	static final TermDictionary NONE = new TermDictionary(0);
+
+	/**
+	 * Entry for terms that did not fit, the only one without an id.
+	 */
+	private static final Entry MISSING = new Entry("", NO_ID);
+
+	private static final ThreadLocal<Term> PROBE = ThreadLocal.withInitial(Term::new);
+
+	private final int maximumSize;
+
+	private final Map<Term, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Terms by id. Replaced when it grows, and only written while holding the lock of
+	 * {@link #entries}, before the term is published there.
+	 */
+	private volatile String[] terms = new String[16];
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	public TermDictionary(int maximumSize) {
+		if (maximumSize < 0) {
+			throw new IllegalArgumentException("maximumSize must not be negative: " + maximumSize);
+		}
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * Returns the canonical instance of {@code term}.
+	 */
+	public String intern(CharSequence term) {
+		return intern(term, 0, term.length());
+	}
+
+	/**
+	 * Returns the canonical instance of the characters of {@code source} from
+	 * {@code start} (inclusive) to {@code end} (exclusive), without allocating if the
+	 * term is known.
+	 */
+	public String intern(CharSequence source, int start, int end) {
+		Entry entry = lookup(source, start, end);
+		return (entry.id() != NO_ID) ? entry.term() : source.subSequence(start, end).toString();
+	}
+
+	/**
+	 * Returns the id of {@code term}, adding it if needed, or {@link #NO_ID} if the
+	 * dictionary is full.
+	 */
+	public int id(CharSequence term) {
+		return lookup(term, 0, term.length()).id();
+	}
+
+	/**
+	 * Returns the term with the given id.
+	 */
+	public String term(int id) {
+		String[] terms = this.terms;
+		if (id < 0 || id >= terms.length || terms[id] == null) {
+			throw new IllegalArgumentException("Unknown term id: " + id);
+		}
+		return terms[id];
+	}
+
+	/**
+	 * Number of distinct terms.
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Number of lookups that found a known term.
+	 */
+	public long hitCount() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * Number of lookups of terms that were added or did not fit.
+	 */
+	public long missCount() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * Ratio of lookups that found a known term, or {@code 0} before the first lookup.
+	 */
+	public double hitRate() {
+		long hits = hitCount();
+		long lookups = hits + missCount();
+		return (lookups == 0) ? 0 : (double) hits / lookups;
+	}
+
+	private Entry lookup(CharSequence source, int start, int end) {
+		Term probe = PROBE.get().set(source, start, end);
+		Entry entry = this.entries.get(probe);
+		// release the source, which is typically a whole query
+		probe.set("", 0, 0);
+		if (entry != null) {
+			this.hits.increment();
+			return entry;
+		}
+		this.misses.increment();
+		if (this.entries.size() >= this.maximumSize) {
+			return MISSING;
+		}
+		return add(source.subSequence(start, end).toString());
+	}
+
+	private Entry add(String term) {
+		synchronized (this.entries) {
+			Term key = new Term().set(term, 0, term.length());
+			Entry entry = this.entries.get(key);
+			if (entry != null) {
+				return entry;
+			}
+			if (this.entries.size() >= this.maximumSize) {
+				return MISSING;
+			}
+			int id = this.entries.size();
+			String[] terms = this.terms;
+			if (id == terms.length) {
+				terms = Arrays.copyOf(terms, id << 1);
+			}
+			terms[id] = term;
+			this.terms = terms;
+			entry = new Entry(term, id);
+			this.entries.put(key, entry);
+			return entry;
+		}
+	}
+
+	private record Entry(String term, int id) {
+
+	}
+
+	/**
+	 * A term as a range of its source, which is also used to look up ranges of the input
+	 * without copying them. Keys in {@link #entries} are never modified.
+	 */
+	private static final class Term {
+
+		private CharSequence source = "";
+
+		private int start;
+
+		private int end;
+
+		private int hash;
+
+		Term set(CharSequence source, int start, int end) {
+			this.source = source;
+			this.start = start;
+			this.end = end;
+			int hash = 0;
+			for (int i = start; i < end; i++) {
+				hash = 31 * hash + source.charAt(i);
+			}
+			this.hash = hash;
+			return this;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Term)) {
+				return false;
+			}
+			Term other = (Term) obj;
+			int length = this.end - this.start;
+			if (this.hash != other.hash || length != other.end - other.start) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (this.source.charAt(this.start + i) != other.source.charAt(other.start + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+	}
+
+}
@@ -1,4 +1,66 @@
 package am.ik.query;
 
-public record Token(TokenType type, String value) {
+import java.nio.CharBuffer;
+import java.util.Objects;
+
+/**
+ * A token referencing the range {@code [start, end)} of its source. The value is only
+ * materialized when {@link #value()} is called.
+ */
+public record Token(TokenType type, CharSequence source, int start, int end) {
+
+	public Token {
+		Objects.checkFromToIndex(start, end, source.length());
+	}
+
+	public Token(TokenType type, String value) {
+		this(type, value, 0, value.length());
+	}
+
+	public String value() {
+		return this.source.subSequence(this.start, this.end).toString();
+	}
+
+	public CharSequence text() {
+		return CharBuffer.wrap(this.source, this.start, this.end);
+	}
+
+	public int length() {
+		return this.end - this.start;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Token)) {
+			return false;
+		}
+		Token that = (Token) o;
+		if (this.type != that.type || this.length() != that.length()) {
+			return false;
+		}
+		for (int i = 0; i < this.length(); i++) {
+			if (this.source.charAt(this.start + i) != that.source.charAt(that.start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = 0;
+		for (int i = this.start; i < this.end; i++) {
+			h = 31 * h + this.source.charAt(i);
+		}
+		return 31 * this.type.hashCode() + h;
+	}
+
+	@Override
+	public String toString() {
+		return "Token[type=" + this.type + ", value=" + this.text() + "]";
+	}
+
 }
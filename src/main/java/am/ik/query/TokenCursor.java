@@ -0,0 +1,37 @@
+package am.ik.query;
+
+/**
+ * Pull-style access to tokens. {@link #advance()} moves to the next token, and the
+ * accessors describe the current one until the next call.
+ */
+public interface TokenCursor {
+
+	boolean advance();
+
+	TokenType type();
+
+	int start();
+
+	int end();
+
+	String value();
+
+	/**
+	 * Name of the current {@link TokenType#FIELD} or {@link TokenType#EXCLUDED_FIELD}
+	 * token, which is the part of its value before the first {@code =}.
+	 */
+	default String fieldName() {
+		String value = value();
+		return value.substring(0, value.indexOf('='));
+	}
+
+	/**
+	 * Value of the current {@link TokenType#FIELD} or {@link TokenType#EXCLUDED_FIELD}
+	 * token, which is the part of its value after the first {@code =}.
+	 */
+	default String fieldValue() {
+		String value = value();
+		return value.substring(value.indexOf('=') + 1);
+	}
+
+}
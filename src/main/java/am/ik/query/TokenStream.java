@@ -0,0 +1,119 @@
+package am.ik.query;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Array-backed token buffer with constant-time indexed access.
+ */
+public final class TokenStream extends AbstractList<Token> implements RandomAccess {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private Token[] tokens;
+
+	private int size;
+
+	public TokenStream() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public TokenStream(int initialCapacity) {
+		if (initialCapacity < 0) {
+			throw new IllegalArgumentException("initialCapacity must not be negative: " + initialCapacity);
+		}
+		this.tokens = new Token[Math.max(initialCapacity, 1)];
+	}
+
+	public static TokenStream copyOf(List<Token> tokens) {
+		if (tokens instanceof TokenStream) {
+			return (TokenStream) tokens;
+		}
+		TokenStream stream = new TokenStream(tokens.size());
+		for (Token token : tokens) {
+			stream.add(token);
+		}
+		return stream;
+	}
+
+	public TokenCursor cursor() {
+		return new TokenCursor() {
+
+			private int index = -1;
+
+			@Override
+			public boolean advance() {
+				if (this.index + 1 < TokenStream.this.size) {
+					this.index++;
+					return true;
+				}
+				return false;
+			}
+
+			@Override
+			public TokenType type() {
+				return TokenStream.this.tokens[this.index].type();
+			}
+
+			@Override
+			public int start() {
+				return TokenStream.this.tokens[this.index].start();
+			}
+
+			@Override
+			public int end() {
+				return TokenStream.this.tokens[this.index].end();
+			}
+
+			@Override
+			public String value() {
+				return TokenStream.this.tokens[this.index].value();
+			}
+
+		};
+	}
+
+	@Override
+	public Token get(int index) {
+		Objects.checkIndex(index, this.size);
+		return this.tokens[index];
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean add(Token token) {
+		if (this.size == this.tokens.length) {
+			this.tokens = Arrays.copyOf(this.tokens, this.tokens.length + (this.tokens.length >> 1) + 1);
+		}
+		this.tokens[this.size++] = Objects.requireNonNull(token, "token must not be null");
+		this.modCount++;
+		return true;
+	}
+
+	@Override
+	public Token remove(int index) {
+		Token removed = get(index);
+		int moved = this.size - index - 1;
+		if (moved > 0) {
+			System.arraycopy(this.tokens, index + 1, this.tokens, index, moved);
+		}
+		this.tokens[--this.size] = null;
+		this.modCount++;
+		return removed;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(this.tokens, 0, this.size, null);
+		this.size = 0;
+		this.modCount++;
+	}
+
+}
@@ -2,7 +2,39 @@ package am.ik.query;
 
 public enum TokenType {
 
-	PHRASE, EXCLUDE, OR, KEYWORD, WHITESPACE, LPAREN, // '('
-	RPAREN // ')'
+	PHRASE(0), EXCLUDE(1), OR(2), KEYWORD(3), FIELD(4), // 'name=value'
+	EXCLUDED_FIELD(5), // '-name=value'
+	WHITESPACE(6), LPAREN(7), // '('
+	RPAREN(8); // ')'
+
+	private static final TokenType[] BY_CODE = new TokenType[values().length];
+
+	static {
+		for (TokenType type : values()) {
+			BY_CODE[type.code] = type;
+		}
+	}
+
+	private final byte code;
+
+	TokenType(int code) {
+		this.code = (byte) code;
+	}
+
+	/**
+	 * Compact code of this type, from {@code 0} to the number of types minus one, for
+	 * storing tokens and nodes in primitive arrays and direct memory. Codes are assigned
+	 * explicitly so that they do not change when types are reordered.
+	 */
+	byte code() {
+		return this.code;
+	}
+
+	/**
+	 * Returns the type with {@code code}.
+	 */
+	static TokenType ofCode(int code) {
+		return BY_CODE[code];
+	}
 
 }
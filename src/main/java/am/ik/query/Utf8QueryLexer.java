@@ -0,0 +1,408 @@
+package am.ik.query;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Pull-based lexer over UTF-8 encoded bytes. Delimiters are all ASCII, so most bytes are
+ * classified without decoding. Only non-ASCII characters at positions where whitespace or
+ * letters matter are decoded, and token values are decoded only when {@link #value()} is
+ * called.
+ * <p>
+ * Offsets are byte indices into the source array or buffer. The produced tokens are the
+ * same as {@link QueryLexer} produces for the decoded string.
+ */
+public class Utf8QueryLexer implements TokenCursor {
+
+	private final ByteBuffer input;
+
+	private final int length;
+
+	private int position;
+
+	/**
+	 * Offset past which the input is too long, as set by {@link #limitLength(int)}.
+	 */
+	private int lengthLimit = Integer.MAX_VALUE;
+
+	/**
+	 * Start of the run of characters without whitespace or parens that ends with the
+	 * token just scanned, or before it if it is a paren. A hyphenated keyword begins
+	 * there, so the lexer never scans backwards.
+	 */
+	private int wordStart;
+
+	private TokenType type = TokenType.WHITESPACE;
+
+	private int start;
+
+	private int end;
+
+	/**
+	 * Offset of the {@code =} in the current {@link TokenType#FIELD} token.
+	 */
+	private int separator;
+
+	/**
+	 * Whether the current {@link TokenType#PHRASE} token has no closing quote.
+	 */
+	private boolean unterminated;
+
+	public Utf8QueryLexer(byte[] input) {
+		this(input, 0, input.length);
+	}
+
+	/**
+	 * Lexes {@code input} from {@code start} (inclusive) to {@code end} (exclusive).
+	 */
+	public Utf8QueryLexer(byte[] input, int start, int end) {
+		Objects.checkFromToIndex(start, end, input.length);
+		this.input = ByteBuffer.wrap(input);
+		this.length = end;
+		this.position = start;
+		this.wordStart = start;
+	}
+
+	/**
+	 * Lexes the bytes between the buffer's position and limit. Offsets are absolute
+	 * indices into the buffer, and the buffer's own position and limit are left
+	 * untouched.
+	 */
+	public Utf8QueryLexer(ByteBuffer input) {
+		this.input = input.duplicate();
+		this.length = input.limit();
+		this.position = input.position();
+		this.wordStart = this.position;
+	}
+
+	@Override
+	public boolean advance() {
+		if (this.position >= this.length) {
+			return false;
+		}
+		scan();
+		if (joinsHyphen(this.position)) {
+			scanHyphenated(this.position);
+		}
+		return true;
+	}
+
+	@Override
+	public TokenType type() {
+		return this.type;
+	}
+
+	@Override
+	public int start() {
+		return this.start;
+	}
+
+	@Override
+	public int end() {
+		return this.end;
+	}
+
+	@Override
+	public String value() {
+		if (this.type == TokenType.PHRASE && this.unterminated) {
+			// like QueryLexer, drop the last UTF-16 char, which may split a
+			// surrogate pair, and fail for a lone trailing quote
+			String value = decode(this.start, this.position);
+			return value.substring(0, value.length() - 1);
+		}
+		return decode(this.start, this.end);
+	}
+
+	@Override
+	public String fieldName() {
+		return decode(this.start, this.separator);
+	}
+
+	@Override
+	public String fieldValue() {
+		return decode(this.separator + 1, this.end);
+	}
+
+	/**
+	 * Allows at most {@code maxLength} bytes from the current position, and returns the
+	 * offset where the input then ends. The whole input is known up front, so
+	 * {@link #exceedsLength()} tells right away whether it is too long.
+	 */
+	int limitLength(int maxLength) {
+		this.lengthLimit = (int) Math.min(Integer.MAX_VALUE, (long) this.position + maxLength);
+		return this.lengthLimit;
+	}
+
+	/**
+	 * Whether the input is longer than allowed by {@link #limitLength(int)}.
+	 */
+	boolean exceedsLength() {
+		return this.length > this.lengthLimit;
+	}
+
+	/**
+	 * Whether the current token is a phrase without a closing quote. Its value then lacks
+	 * the last character of the input, where the closing quote would have been.
+	 */
+	boolean isUnterminatedPhrase() {
+		return this.type == TokenType.PHRASE && this.unterminated;
+	}
+
+	/**
+	 * Value of an unterminated phrase up to the end of the input.
+	 */
+	String unterminatedValue() {
+		return decode(this.start, this.position);
+	}
+
+	private String decode(int start, int end) {
+		int length = end - start;
+		if (this.input.hasArray()) {
+			return new String(this.input.array(), this.input.arrayOffset() + start, length, StandardCharsets.UTF_8);
+		}
+		byte[] bytes = new byte[length];
+		this.input.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private void scan() {
+		int length = this.length;
+		int i = this.position;
+		if (this.type == TokenType.LPAREN || this.type == TokenType.RPAREN) {
+			// only now, as a hyphen right after a paren joins the word before the paren
+			this.wordStart = i;
+		}
+		int current = classAt(i);
+		if ((current & CharClass.WHITESPACE) != 0) {
+			int start = i;
+			while (i < length && isWhitespace(i)) {
+				i = next(i);
+			}
+			this.wordStart = i;
+			emit(TokenType.WHITESPACE, start, i, i);
+		}
+		else if ((current & CharClass.QUOTE) != 0) {
+			int start = i++;
+			while (i < length && byteAt(i) != '"') {
+				int next = next(i);
+				if ((classAt(i) & CharClass.WORD_END) != 0) {
+					this.wordStart = next;
+				}
+				i = next;
+			}
+			this.unterminated = i == length;
+			if (!this.unterminated) {
+				i++; // consume closing "
+				emit(TokenType.PHRASE, start + 1, i - 1, i);
+			}
+			else if (start + 1 == i) {
+				// like QueryLexer, a lone trailing quote starts after it ends
+				emit(TokenType.PHRASE, i, start, i);
+			}
+			else {
+				emit(TokenType.PHRASE, start + 1, lastCharacter(start + 1, i), i);
+			}
+		}
+		else if ((current & CharClass.HYPHEN) != 0) {
+			// like QueryLexer, never joins a hyphen
+			int start = i++;
+			while (i < length && (classAt(i) & CharClass.KEYWORD_END) == 0) {
+				i = next(i);
+			}
+			TokenType type = TokenType.EXCLUDE;
+			if (i > start + 1 && i < length && byteAt(i) == '=') {
+				type = TokenType.EXCLUDED_FIELD;
+				this.separator = i;
+			}
+			while (i < length && !isWhitespace(i)) {
+				i = next(i);
+			}
+			emit(type, start + 1, i, i);
+		}
+		else if ((current & CharClass.PAREN) != 0) {
+			emit(byteAt(i) == '(' ? TokenType.LPAREN : TokenType.RPAREN, i, i + 1, i + 1);
+		}
+		else {
+			int start = i;
+			while (i < length && (classAt(i) & CharClass.KEYWORD_END) == 0) {
+				i = next(i);
+			}
+			TokenType type = isOr(start, i) ? TokenType.OR : TokenType.KEYWORD;
+			if (i < length && byteAt(i) == '=') {
+				type = (i > start) ? TokenType.FIELD : TokenType.KEYWORD;
+				this.separator = i;
+				do {
+					i = next(i);
+				}
+				while (i < length && (classAt(i) & CharClass.WORD_END) == 0);
+			}
+			emit(type, start, i, i);
+		}
+	}
+
+	private boolean joinsHyphen(int i) {
+		return this.type != TokenType.WHITESPACE && i + 1 < this.length && byteAt(i) == '-'
+				&& (isLetterOrDigit(i + 1) || byteAt(i + 1) == '"');
+	}
+
+	private void scanHyphenated(int i) {
+		int length = this.length;
+		int start = this.wordStart;
+		if (this.type == TokenType.LPAREN || this.type == TokenType.RPAREN) {
+			// the paren becomes part of the keyword but still ends the word before it
+			this.wordStart = i;
+		}
+		while (i < length && (classAt(i) & CharClass.WORD_END) == 0) {
+			i = next(i);
+		}
+		emit(TokenType.KEYWORD, start, i, i);
+	}
+
+	private void emit(TokenType type, int start, int end, int position) {
+		this.type = type;
+		this.start = start;
+		this.end = end;
+		this.position = position;
+	}
+
+	private boolean isOr(int start, int end) {
+		if (end - start != 2) {
+			return false;
+		}
+		byte o = byteAt(start);
+		byte r = byteAt(start + 1);
+		return (o == 'o' || o == 'O') && (r == 'r' || r == 'R');
+	}
+
+	private byte byteAt(int i) {
+		return this.input.get(i);
+	}
+
+	/**
+	 * {@link CharClass} flags of the character starting at {@code i}. ASCII bytes are
+	 * looked up directly, anything else is decoded first.
+	 */
+	private int classAt(int i) {
+		byte b = byteAt(i);
+		if (b >= 0) {
+			return CharClass.ascii(b);
+		}
+		int codePoint = decode(i);
+		return (codePoint >= 0) ? CharClass.of((char) codePoint) : 0;
+	}
+
+	private boolean isWhitespace(int i) {
+		return (classAt(i) & CharClass.WHITESPACE) != 0;
+	}
+
+	private boolean isLetterOrDigit(int i) {
+		byte b = byteAt(i);
+		if (b >= 0) {
+			return (CharClass.ascii(b) & CharClass.LETTER_OR_DIGIT) != 0;
+		}
+		int codePoint = decode(i);
+		return codePoint >= 0 && CharClass.isLetterOrDigit((char) codePoint);
+	}
+
+	/**
+	 * Decodes the character starting at {@code i}, or returns {@code -1} for malformed
+	 * input and characters outside the BMP. Neither is whitespace nor a letter as seen by
+	 * {@link QueryLexer}, which classifies UTF-16 code units, including surrogates.
+	 */
+	private int decode(int i) {
+		int lead = byteAt(i) & 0xff;
+		int length = sequenceLength(i);
+		if (length == 2) {
+			return ((lead & 0x1f) << 6) | (byteAt(i + 1) & 0x3f);
+		}
+		if (length == 3) {
+			return ((lead & 0x0f) << 12) | ((byteAt(i + 1) & 0x3f) << 6) | (byteAt(i + 2) & 0x3f);
+		}
+		return -1;
+	}
+
+	/**
+	 * Byte length of the well-formed sequence starting at {@code i}, or {@code 1} when
+	 * the sequence is malformed so that ASCII delimiters are never skipped.
+	 */
+	private int sequenceLength(int i) {
+		int lead = byteAt(i) & 0xff;
+		int length;
+		if (lead < 0x80) {
+			return 1;
+		}
+		else if (lead >= 0xc2 && lead <= 0xdf) {
+			length = 2;
+		}
+		else if (lead >= 0xe0 && lead <= 0xef) {
+			length = 3;
+		}
+		else if (lead >= 0xf0 && lead <= 0xf4) {
+			length = 4;
+		}
+		else {
+			return 1;
+		}
+		if (i + length > this.length) {
+			return 1;
+		}
+		int second = byteAt(i + 1) & 0xff;
+		// reject overlong forms, surrogates and code points above U+10FFFF like the JDK
+		// decoder does
+		if ((lead == 0xe0 && second < 0xa0) || (lead == 0xed && second > 0x9f) || (lead == 0xf0 && second < 0x90)
+				|| (lead == 0xf4 && second > 0x8f)) {
+			return 1;
+		}
+		for (int k = 1; k < length; k++) {
+			if ((byteAt(i + k) & 0xc0) != 0x80) {
+				return 1;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Start of the last character in {@code [from, to)} as the JDK decoder splits it,
+	 * which replaces each maximal malformed subpart with a single character.
+	 */
+	private int lastCharacter(int from, int to) {
+		int i = from;
+		int last = from;
+		while (i < to) {
+			last = i;
+			int length = sequenceLength(i);
+			if (length == 1) {
+				int lead = byteAt(i) & 0xff;
+				int expected = (lead >= 0xc2 && lead <= 0xdf) ? 2
+						: (lead >= 0xe0 && lead <= 0xef) ? 3 : (lead >= 0xf0 && lead <= 0xf4) ? 4 : 1;
+				while (length < expected && i + length < to && isContinuation(lead, length, byteAt(i + length))) {
+					length++;
+				}
+			}
+			i += length;
+		}
+		return last;
+	}
+
+	private static boolean isContinuation(int lead, int index, byte b) {
+		int value = b & 0xff;
+		if (index == 1) {
+			if (lead == 0xe0) {
+				return value >= 0xa0 && value <= 0xbf;
+			}
+			if (lead == 0xf0) {
+				return value >= 0x90 && value <= 0xbf;
+			}
+			if (lead == 0xf4) {
+				return value >= 0x80 && value <= 0x8f;
+			}
+		}
+		return (value & 0xc0) == 0x80;
+	}
+
+	private int next(int i) {
+		return i + sequenceLength(i);
+	}
+
+}
@@ -0,0 +1,22 @@
+package am.ik.query;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CharClassTest {
+
+	@Test
+	void matchesCharacterForEveryChar() {
+		for (int i = Character.MIN_VALUE; i <= Character.MAX_VALUE; i++) {
+			char c = (char) i;
+			assertThat(CharClass.isWhitespace(c)).as("U+%04X", i).isEqualTo(Character.isWhitespace(c));
+			assertThat(CharClass.isLetterOrDigit(c)).as("U+%04X", i).isEqualTo(Character.isLetterOrDigit(c));
+			boolean keywordEnd = Character.isWhitespace(c) || c == '"' || c == '-' || c == '(' || c == ')' || c == '=';
+			assertThat((CharClass.of(c) & CharClass.KEYWORD_END) != 0).as("U+%04X", i).isEqualTo(keywordEnd);
+			boolean wordEnd = Character.isWhitespace(c) || c == '(' || c == ')';
+			assertThat((CharClass.of(c) & CharClass.WORD_END) != 0).as("U+%04X", i).isEqualTo(wordEnd);
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package am.ik.query;
+
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FlatQueryTest {
+
+	@Test
+	void navigateWithoutNodes() {
+		FlatQuery query = FlatQuery.parse("hello (world or java) -spring");
+		assertThat(query.size()).isEqualTo(7);
+		int hello = query.firstChild(FlatQuery.ROOT);
+		assertThat(query.type(hello)).isEqualTo(TokenType.KEYWORD);
+		assertThat(query.valueEquals(hello, "hello")).isTrue();
+		int group = query.nextSibling(hello);
+		assertThat(query.isGroup(group)).isTrue();
+		assertThat(query.valueLength(group)).isZero();
+		int world = query.firstChild(group);
+		assertThat(query.parent(world)).isEqualTo(group);
+		assertThat(query.value(world)).isEqualTo("world");
+		assertThat(query.type(query.nextSibling(world))).isEqualTo(TokenType.OR);
+		assertThat(query.nextSibling(query.nextSibling(query.nextSibling(world)))).isEqualTo(FlatQuery.NONE);
+		int spring = query.nextSibling(group);
+		assertThat(query.type(spring)).isEqualTo(TokenType.EXCLUDE);
+		assertThat(query.valueCharAt(spring, 0)).isEqualTo('s');
+		assertThat(query.nextSibling(spring)).isEqualTo(FlatQuery.NONE);
+		assertThat(query.parent(FlatQuery.ROOT)).isEqualTo(FlatQuery.NONE);
+		assertThatThrownBy(() -> query.type(group)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void viewIsReadOnly() {
+		RootNode root = FlatQuery.parse("a (b c)").root();
+		assertThat(root.children()).hasSize(2);
+		assertThat(root.children().get(0)).isEqualTo(new TokenNode(TokenType.KEYWORD, "a"));
+		assertThat(((RootNode) root.children().get(1)).children()).extracting(Node::value).containsExactly("b", "c");
+		assertThatThrownBy(() -> root.children().add(new RootNode())).isInstanceOf(UnsupportedOperationException.class);
+	}
+
+	@Test
+	void viewIsFrozen() {
+		String text = "a (b c) -d";
+		RootNode root = FlatQuery.parse(text).root();
+		assertThat(root.freeze()).isSameAs(root);
+		assertThat(root.children()).isInstanceOf(RandomAccess.class);
+		assertThat(root.children().get(1)).isSameAs(root.children().get(1));
+		assertThat(root).isEqualTo(QueryParser.parseQuery(text)).hasSameHashCodeAs(QueryParser.parseQuery(text));
+	}
+
+	@Test
+	void deeplyNestedGroups() {
+		FlatQuery query = FlatQuery.parse(QueryFixtures.deeplyNested("a") + " b");
+		int node = FlatQuery.ROOT;
+		for (int i = 0; i < QueryFixtures.DEPTH; i++) {
+			node = query.firstChild(node);
+			assertThat(query.isGroup(node)).isTrue();
+		}
+		assertThat(query.value(query.firstChild(node))).isEqualTo("a");
+		assertThat(query.value(query.nextSibling(query.firstChild(FlatQuery.ROOT)))).isEqualTo("b");
+	}
+
+	@Test
+	void sameTreeAsQueryParser() {
+		for (String query : QueryFixtures.randomQueries(5_000)) {
+			String expected = QueryFixtures.parse(() -> QueryParser.parseQuery(query));
+			assertThat(QueryFixtures.parse(() -> FlatQuery.parse(query).root())).as(query).isEqualTo(expected);
+		}
+	}
+
+	@Test
+	void flattenParsedTrees() {
+		for (String query : QueryFixtures.randomQueries(5_000)) {
+			String expected = QueryFixtures.parse(() -> QueryParser.parseQuery(query));
+			assertThat(QueryFixtures.parse(() -> FlatQuery.of(QueryParser.parseQuery(query)).root())).as(query)
+				.isEqualTo(expected);
+		}
+		RootNode deep = QueryParser.parseQuery(QueryFixtures.deeplyNested("a"));
+		assertThat(FlatQuery.of(deep).size()).isEqualTo(QueryFixtures.DEPTH + 2);
+		RootNode bool = new RootNode(List.of(QueryParser.parseBooleanQuery("a -b")));
+		assertThatThrownBy(() -> FlatQuery.of(bool)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+}
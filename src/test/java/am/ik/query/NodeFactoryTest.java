@@ -0,0 +1,86 @@
+package am.ik.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NodeFactoryTest {
+
+	@Test
+	void shareEqualSubtrees() {
+		NodeFactory factory = new NodeFactory();
+		RootNode first = factory.intern(QueryParser.parseQuery("error (prod or staging) -internal"));
+		RootNode second = factory.intern(QueryParser.parseQuery("warn (prod or staging) -internal"));
+		assertThat(first).isEqualTo(QueryParser.parseQuery("error (prod or staging) -internal"));
+		assertThat(second.children().get(1)).isSameAs(first.children().get(1));
+		assertThat(second.children().get(2)).isSameAs(first.children().get(2));
+		assertThat(factory.intern(QueryParser.parseQuery("error (prod or staging) -internal"))).isSameAs(first);
+		assertThat(factory.group(factory.token(TokenType.KEYWORD, "prod"), factory.token(TokenType.OR, "or"),
+				factory.token(TokenType.KEYWORD, "staging")))
+			.isSameAs(first.children().get(1));
+		assertThat(factory.field("status", "500"))
+			.isSameAs(factory.intern(QueryParser.parseQuery("status=500")).children().get(0));
+	}
+
+	@Test
+	void reuseSharedTrees() {
+		NodeFactory factory = new NodeFactory();
+		RootNode shared = factory.intern(QueryParser.parseQuery("a (b c)"));
+		long misses = factory.missCount();
+		assertThat(factory.intern(shared)).isSameAs(shared);
+		assertThat(factory.missCount()).isEqualTo(misses);
+		RootNode mutable = new RootNode();
+		mutable.children().add(new TokenNode(TokenType.KEYWORD, "a"));
+		mutable.children().add(QueryParser.parseQuery("b c"));
+		assertThat(factory.intern(mutable)).isSameAs(shared);
+		assertThat(factory.hitCount()).isPositive();
+	}
+
+	@Test
+	void keepNodesInUse() {
+		NodeFactory factory = new NodeFactory();
+		List<RootNode> kept = new ArrayList<>();
+		for (int i = 0; i < 1_000; i++) {
+			kept.add(factory.intern(QueryParser.parseQuery("kept" + i)));
+		}
+		int size = factory.size();
+		System.gc();
+		assertThat(factory.size()).isEqualTo(size);
+		for (int i = 0; i < kept.size(); i++) {
+			assertThat(factory.intern(QueryParser.parseQuery("kept" + i))).isSameAs(kept.get(i));
+		}
+	}
+
+	/**
+	 * Waits for the garbage collector to clear unused entries, which it is not obliged to
+	 * do, so this only runs with {@code -Dgc=true}.
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "gc", matches = "true")
+	void dropUnusedNodes() throws InterruptedException {
+		NodeFactory factory = new NodeFactory();
+		RootNode kept = factory.intern(QueryParser.parseQuery("kept"));
+		for (int i = 0; i < 1_000; i++) {
+			factory.intern(QueryParser.parseQuery("dropped" + i));
+		}
+		for (int i = 0; i < 50 && factory.size() > 2; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertThat(factory.size()).isEqualTo(2);
+		assertThat(factory.intern(QueryParser.parseQuery("kept"))).isSameAs(kept);
+	}
+
+	@Test
+	void deeplyNestedGroups() {
+		String query = QueryFixtures.deeplyNested("a");
+		NodeFactory factory = new NodeFactory();
+		RootNode root = factory.intern(QueryParser.parseQuery(query));
+		assertThat(factory.intern(QueryParser.parseQuery(query))).isSameAs(root);
+	}
+
+}
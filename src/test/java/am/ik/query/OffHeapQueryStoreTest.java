@@ -0,0 +1,220 @@
+package am.ik.query;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class OffHeapQueryStoreTest {
+
+	@Test
+	void navigateOffHeap() {
+		try (OffHeapQueryStore store = new OffHeapQueryStore()) {
+			OffHeapQuery query = store.get(store.store("hello (world or java) -spring"));
+			assertThat(query.size()).isEqualTo(7);
+			int hello = query.firstChild(FlatQuery.ROOT);
+			assertThat(query.type(hello)).isEqualTo(TokenType.KEYWORD);
+			assertThat(query.valueEquals(hello, "hello")).isTrue();
+			int group = query.nextSibling(hello);
+			assertThat(query.isGroup(group)).isTrue();
+			assertThat(query.valueLength(group)).isZero();
+			int world = query.firstChild(group);
+			assertThat(query.parent(world)).isEqualTo(group);
+			assertThat(query.value(world)).isEqualTo("world");
+			assertThat(query.type(query.nextSibling(world))).isEqualTo(TokenType.OR);
+			int spring = query.nextSibling(group);
+			assertThat(query.type(spring)).isEqualTo(TokenType.EXCLUDE);
+			assertThat(query.valueCharAt(spring, 0)).isEqualTo('s');
+			assertThat(query.nextSibling(spring)).isEqualTo(FlatQuery.NONE);
+			assertThat(query.parent(FlatQuery.ROOT)).isEqualTo(FlatQuery.NONE);
+			assertThat(query.root().children()).isInstanceOf(RandomAccess.class);
+			assertThat(query.root().children().get(2)).isEqualTo(new TokenNode(TokenType.EXCLUDE, "spring"));
+			assertThatThrownBy(() -> query.type(group)).isInstanceOf(IllegalArgumentException.class);
+			assertThatThrownBy(() -> query.value(7)).isInstanceOf(IndexOutOfBoundsException.class);
+		}
+	}
+
+	@Test
+	void sameTreeAsQueryParser() {
+		try (OffHeapQueryStore store = new OffHeapQueryStore(256)) {
+			for (String query : QueryFixtures.randomQueries(5_000)) {
+				String expected = QueryFixtures.parse(() -> QueryParser.parseQuery(query));
+				assertThat(QueryFixtures.parse(() -> store.get(store.store(query)).root())).as(query)
+					.isEqualTo(expected);
+			}
+		}
+	}
+
+	@Test
+	void storeParsedTrees() {
+		RootNode root = new QueryCache(16).parseQuery("status=500 (a or \"b c\") -d");
+		try (OffHeapQueryStore store = new OffHeapQueryStore()) {
+			assertThat(store.get(store.store(root)).root()).isEqualTo(root);
+		}
+	}
+
+	@Test
+	void freedQueriesCannotBeRead() {
+		try (OffHeapQueryStore store = new OffHeapQueryStore()) {
+			long kept = store.store("a b");
+			long handle = store.store("c d");
+			OffHeapQuery query = store.get(handle);
+			List<Node> children = query.root().children();
+			store.free(handle);
+			assertThatThrownBy(() -> children.get(0)).isInstanceOf(IllegalStateException.class);
+			assertThat(query.isAlive()).isFalse();
+			assertThatThrownBy(() -> query.value(1)).isInstanceOf(IllegalStateException.class);
+			assertThatThrownBy(() -> store.get(handle)).isInstanceOf(IllegalStateException.class);
+			assertThatThrownBy(() -> store.free(handle)).isInstanceOf(IllegalStateException.class);
+			assertThat(store.get(kept).root()).isEqualTo(QueryParser.parseQuery("a b"));
+			assertThat(store.size()).isEqualTo(1);
+		}
+	}
+
+	@Test
+	void reuseChunksOnceEmpty() {
+		try (OffHeapQueryStore store = new OffHeapQueryStore(1024)) {
+			long stale = store.store("stale");
+			for (int round = 0; round < 100; round++) {
+				List<Long> handles = new ArrayList<>();
+				for (int i = 0; i < 100; i++) {
+					handles.add(store.store("query " + i + " (a or b)"));
+				}
+				if (round == 0) {
+					store.free(stale);
+				}
+				for (long handle : handles) {
+					store.free(handle);
+				}
+				assertThat(store.size()).isZero();
+				assertThat(store.usedBytes()).isZero();
+			}
+			// a query stored where a freed one was is not readable through the old handle
+			assertThat(store.store("stale")).isNotEqualTo(stale);
+			assertThatThrownBy(() -> store.get(stale)).isInstanceOf(IllegalStateException.class);
+			assertThat(store.reservedBytes()).isLessThanOrEqualTo(2 * 1024);
+		}
+	}
+
+	@Test
+	void staleViewsDoNotReadReusedMemory() {
+		// every query fills a chunk, so the next one reuses the same memory
+		int chunkSize = (int) OffHeapQuery.length(2, 1);
+		try (OffHeapQueryStore store = new OffHeapQueryStore(chunkSize)) {
+			long first = store.store("a");
+			OffHeapQuery stale = store.get(first);
+			store.free(first);
+			long second = store.store("b");
+			assertThat((int) second).isEqualTo((int) first);
+			assertThatThrownBy(() -> stale.value(1)).isInstanceOf(IllegalStateException.class);
+			assertThat(store.get(second).value(1)).isEqualTo("b");
+		}
+	}
+
+	@Test
+	void staleHandlesNeverMatchLaterQueries() {
+		int chunkSize = (int) OffHeapQuery.length(2, 1);
+		try (OffHeapQueryStore store = new OffHeapQueryStore(chunkSize)) {
+			long stale = store.store("a");
+			store.free(stale);
+			// as many epochs as a handle can tell apart, so that the next query would get
+			// the same handle if epochs wrapped around
+			for (int i = 0; i < 0xFFFF; i++) {
+				store.free(store.store("b"));
+			}
+			long live = store.store("c");
+			assertThatThrownBy(() -> store.get(stale)).isInstanceOf(IllegalStateException.class);
+			assertThatThrownBy(() -> store.free(stale)).isInstanceOf(IllegalStateException.class);
+			assertThat(store.size()).isEqualTo(1);
+			assertThat(store.get(live).value(1)).isEqualTo("c");
+		}
+	}
+
+	@Test
+	void viewsOfRecycledChunksFailBeforeReadingTheRecord() {
+		OffHeapQueryStore.Chunk chunk = new OffHeapQueryStore.Chunk(0);
+		// the chunk was recycled and its buffer dropped after the handle was checked
+		chunk.epoch.incrementAndGet();
+		assertThatThrownBy(() -> new OffHeapQuery(chunk, 0, ByteBuffer.allocate(0), 64))
+			.isInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	void getRacingWithFreeOnlyReportsFreedQueries() throws Exception {
+		int chunkSize = (int) OffHeapQuery.length(2, 1);
+		try (OffHeapQueryStore store = new OffHeapQueryStore(chunkSize)) {
+			AtomicLong handle = new AtomicLong(store.store("a"));
+			AtomicBoolean done = new AtomicBoolean();
+			Thread writer = new Thread(() -> {
+				for (int i = 0; i < 20_000; i++) {
+					long previous = handle.get();
+					handle.set(store.store("b"));
+					store.free(previous);
+				}
+				done.set(true);
+			});
+			writer.start();
+			while (!done.get()) {
+				try {
+					assertThat(store.get(handle.get()).value(1)).isIn("a", "b");
+				}
+				catch (IllegalStateException ex) {
+					// freed while it was read
+				}
+			}
+			writer.join();
+		}
+	}
+
+	@Test
+	void rejectHandlesThatDoNotPointAtAQuery() {
+		try (OffHeapQueryStore store = new OffHeapQueryStore()) {
+			long handle = store.store("hello world");
+			assertThatThrownBy(() -> store.free(handle + OffHeapQueryStore.ALIGNMENT))
+				.isInstanceOf(IllegalStateException.class);
+			assertThatThrownBy(() -> store.get(handle + 1)).isInstanceOf(IllegalStateException.class);
+			assertThatThrownBy(() -> store.get(handle + (1L << 48))).isInstanceOf(IllegalStateException.class);
+			assertThat(store.size()).isEqualTo(1);
+			assertThat(store.get(handle).root()).isEqualTo(QueryParser.parseQuery("hello world"));
+		}
+	}
+
+	@Test
+	void largeQueriesGetTheirOwnChunk() {
+		try (OffHeapQueryStore store = new OffHeapQueryStore(64)) {
+			String text = "term ".repeat(1_000) + "(nested group)";
+			long handle = store.store(text);
+			assertThat(store.get(handle).root()).isEqualTo(QueryParser.parseQuery(text));
+			assertThat(store.reservedBytes()).isGreaterThan(store.usedBytes() - 1);
+			store.free(handle);
+			assertThat(store.reservedBytes()).isZero();
+		}
+	}
+
+	@Test
+	void closeFreesAllQueries() {
+		OffHeapQueryStore store = new OffHeapQueryStore();
+		long handle = store.store("a (b c)");
+		OffHeapQuery query = store.get(handle);
+		store.close();
+		assertThat(store.reservedBytes()).isZero();
+		assertThat(query.isAlive()).isFalse();
+		assertThatThrownBy(query::root).isInstanceOf(IllegalStateException.class);
+		assertThatThrownBy(() -> store.get(handle)).isInstanceOf(IllegalStateException.class);
+		assertThatThrownBy(() -> store.store("d")).isInstanceOf(IllegalStateException.class);
+		store.close();
+	}
+
+	@Test
+	void chunkSizeMustBePositive() {
+		assertThatThrownBy(() -> new OffHeapQueryStore(0)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+}
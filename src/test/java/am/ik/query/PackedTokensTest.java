@@ -0,0 +1,68 @@
+package am.ik.query;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PackedTokensTest {
+
+	@Test
+	void sameTokensAsTokenStream() {
+		String[] alphabet = { "a", "b", "or", " ", "\t", "-", "\"", "(", ")", "=", "日", "x-y" };
+		Random random = new Random(42);
+		for (int n = 0; n < 5_000; n++) {
+			String query = QueryFixtures.random(random, alphabet, 20) + " end";
+			TokenStream expected = QueryLexer.tokenize(query);
+			PackedTokens tokens = PackedTokens.tokenize(query);
+			assertThat(tokens.size()).isEqualTo(expected.size());
+			for (int i = 0; i < tokens.size(); i++) {
+				Token token = expected.get(i);
+				assertThat(tokens.type(i)).isEqualTo(token.type());
+				assertThat(tokens.start(i)).isEqualTo(token.start());
+				assertThat(tokens.end(i)).isEqualTo(token.end());
+				assertThat(tokens.length(i)).isEqualTo(token.length());
+				assertThat(tokens.value(i)).isEqualTo(token.value());
+				assertThat(tokens.get(i)).isEqualTo(token);
+			}
+		}
+	}
+
+	@Test
+	void parserRunsOverPackedTokens() {
+		String query = "hello (world or java) -spring \"boot app\"";
+		RootNode node = new QueryParser(PackedTokens.tokenize(query)).parse();
+		assertThat(QueryFixtures.render(node)).isEqualTo(QueryFixtures.render(QueryParser.parseQuery(query)));
+	}
+
+	@Test
+	void resetReusesArray() {
+		PackedTokens tokens = PackedTokens.tokenize("a b c d e f g h");
+		tokens.reset("x y");
+		assertThat(tokens.source()).isEqualTo("x y");
+		assertThat(tokens.size()).isEqualTo(3);
+		assertThat(tokens.value(2)).isEqualTo("y");
+		assertThatThrownBy(() -> tokens.type(3)).isInstanceOf(IndexOutOfBoundsException.class);
+	}
+
+	@Test
+	void largeOffsets() {
+		String query = "a".repeat(3_000_000) + " " + "b".repeat(5);
+		PackedTokens tokens = PackedTokens.tokenize(query);
+		assertThat(tokens.size()).isEqualTo(3);
+		assertThat(tokens.length(0)).isEqualTo(3_000_000);
+		assertThat(tokens.start(2)).isEqualTo(3_000_001);
+		assertThat(tokens.type(2)).isEqualTo(TokenType.KEYWORD);
+		assertThat(tokens.value(2)).isEqualTo("bbbbb");
+	}
+
+	@Test
+	void rejectsInvalidRange() {
+		PackedTokens tokens = new PackedTokens("abc");
+		assertThatThrownBy(() -> tokens.add(TokenType.KEYWORD, 2, 4)).isInstanceOf(IndexOutOfBoundsException.class);
+		assertThat(tokens.isEmpty()).isTrue();
+	}
+
+}
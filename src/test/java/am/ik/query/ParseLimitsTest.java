@@ -0,0 +1,131 @@
+package am.ik.query;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ParseLimitsTest {
+
+	static final int UNLIMITED = ParseLimits.UNLIMITED;
+
+	@Test
+	void parseWithinLimits() {
+		ParseLimits limits = new ParseLimits(13, 11, 1, 4);
+		ParseResult result = QueryParser.parseQueryWithin("a (b or c) -d", limits);
+		assertThat(result.isRejected()).isFalse();
+		assertThat(result.isValid()).isTrue();
+		assertThat(result.root()).isEqualTo(QueryParser.parseQuery("a (b or c) -d"));
+	}
+
+	@Test
+	void rejectLongInputBeforeLexing() {
+		ParseLimits limits = new ParseLimits(10, UNLIMITED, UNLIMITED, UNLIMITED);
+		ParseResult result = QueryParser.parseQueryWithin("a".repeat(11), limits);
+		assertThat(result.isRejected()).isTrue();
+		assertThat(result.root().hasChildren()).isFalse();
+		assertThat(result.diagnostics()).containsExactly(new Diagnostic(Diagnostic.Kind.INPUT_TOO_LONG, 10));
+		assertThat(QueryParser.parseQueryWithin("a".repeat(10), limits).isRejected()).isFalse();
+		assertThat(limits.count(Diagnostic.Kind.INPUT_TOO_LONG)).isEqualTo(1);
+	}
+
+	@Test
+	void stopReadingLongInput() {
+		AtomicLong read = new AtomicLong();
+		Reader endless = new Reader() {
+			@Override
+			public int read(char[] buffer, int offset, int length) {
+				for (int i = 0; i < length; i++) {
+					buffer[offset + i] = (i % 4 == 3) ? ' ' : 'x';
+				}
+				read.addAndGet(length);
+				return length;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		ParseLimits limits = new ParseLimits(1_000, UNLIMITED, UNLIMITED, UNLIMITED);
+		ParseResult result = new QueryParser(new QueryLexer(endless)).parse(limits);
+		assertThat(result.diagnostics()).containsExactly(new Diagnostic(Diagnostic.Kind.INPUT_TOO_LONG, 1_000));
+		assertThat(read.get()).isLessThan(4_000);
+	}
+
+	@Test
+	void rejectTooManyTokensAndTerms() {
+		ParseLimits tokens = new ParseLimits(UNLIMITED, 4, UNLIMITED, UNLIMITED);
+		assertThat(QueryParser.parseQueryWithin("a b c", tokens).diagnostics())
+			.containsExactly(new Diagnostic(Diagnostic.Kind.TOO_MANY_TOKENS, 4));
+		assertThat(QueryParser.parseQueryWithin("a (b", tokens).isRejected()).isFalse();
+		ParseLimits terms = new ParseLimits(UNLIMITED, UNLIMITED, UNLIMITED, 2);
+		assertThat(QueryParser.parseQueryWithin("a or (b) c", terms).diagnostics())
+			.containsExactly(new Diagnostic(Diagnostic.Kind.TOO_MANY_TERMS, 9));
+		assertThat(QueryParser.parseQueryWithin("a or (b) or", terms).isRejected()).isFalse();
+		assertThat(tokens.count(Diagnostic.Kind.TOO_MANY_TOKENS)).isEqualTo(1);
+		assertThat(terms.count(Diagnostic.Kind.TOO_MANY_TERMS)).isEqualTo(1);
+		assertThat(terms.count(Diagnostic.Kind.TOO_MANY_TOKENS)).isZero();
+	}
+
+	@Test
+	void mergeGroupsBeyondMaxDepth() {
+		ParseLimits limits = new ParseLimits(UNLIMITED, UNLIMITED, 1, UNLIMITED);
+		ParseResult result = QueryParser.parseQueryWithin("a ((b) c", limits);
+		assertThat(result.isRejected()).isFalse();
+		assertThat(result.diagnostics()).containsExactly(new Diagnostic(Diagnostic.Kind.UNCLOSED_GROUP, 2),
+				new Diagnostic(Diagnostic.Kind.NESTING_TOO_DEEP, 3));
+		assertThat(result.root()).isEqualTo(QueryParser.parseQuery("a (b c)"));
+		assertThat(limits.count(Diagnostic.Kind.NESTING_TOO_DEEP)).isEqualTo(1);
+	}
+
+	@Test
+	void limitOtherTokenSources() {
+		ParseLimits limits = new ParseLimits(3, UNLIMITED, UNLIMITED, UNLIMITED);
+		assertThat(new QueryParser(PackedTokens.tokenize("ab cd")).parse(limits).diagnostics())
+			.containsExactly(new Diagnostic(Diagnostic.Kind.INPUT_TOO_LONG, 3));
+		assertThat(new QueryParser(PackedTokens.tokenize("a b")).parse(limits).isRejected()).isFalse();
+		// the phrase starts at offset 9 and the whitespace before it at 8
+		PackedTokens tokens = PackedTokens.tokenize("xxxxxxxx \"ab\"");
+		assertThat(new QueryParser(tokens.cursor(2, 3)).parse(limits).isRejected()).isFalse();
+		assertThat(new QueryParser(tokens.cursor(1, 3)).parse(limits).diagnostics())
+			.containsExactly(new Diagnostic(Diagnostic.Kind.INPUT_TOO_LONG, 11));
+	}
+
+	@Test
+	void limitUtf8RangesFromTheirStart() {
+		ParseLimits limits = new ParseLimits(8, UNLIMITED, UNLIMITED, UNLIMITED);
+		byte[] bytes = ("x".repeat(1012) + "a (b) -c").getBytes(StandardCharsets.UTF_8);
+		ParseResult result = new QueryParser(new Utf8QueryLexer(bytes, 1012, bytes.length)).parse(limits);
+		assertThat(result.isRejected()).isFalse();
+		assertThat(result.root()).isEqualTo(QueryParser.parseQuery("a (b) -c"));
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).position(1012);
+		assertThat(new QueryParser(new Utf8QueryLexer(buffer)).parse(limits).isRejected()).isFalse();
+		assertThat(new QueryParser(new Utf8QueryLexer(buffer.position(1011))).parse(limits).diagnostics())
+			.containsExactly(new Diagnostic(Diagnostic.Kind.INPUT_TOO_LONG, 1019));
+	}
+
+	@Test
+	void rejectLongUtf8InputBeforeLexing() {
+		ParseLimits limits = new ParseLimits(1_000, UNLIMITED, UNLIMITED, UNLIMITED);
+		byte[] bytes = "x".repeat(1_000_000).getBytes(StandardCharsets.UTF_8);
+		Utf8QueryLexer lexer = new Utf8QueryLexer(bytes);
+		assertThat(new QueryParser(lexer).parse(limits).diagnostics())
+			.containsExactly(new Diagnostic(Diagnostic.Kind.INPUT_TOO_LONG, 1_000));
+		// the single keyword was not scanned, so it is still ahead of the lexer
+		assertThat(lexer.advance()).isTrue();
+		assertThat(lexer.start()).isZero();
+		assertThat(lexer.end()).isEqualTo(bytes.length);
+	}
+
+	@Test
+	void limitsMustNotBeNegative() {
+		assertThatThrownBy(() -> new ParseLimits(-1, 0, 0, 0)).isInstanceOf(IllegalArgumentException.class)
+			.hasMessageContaining("maxInputLength");
+	}
+
+}
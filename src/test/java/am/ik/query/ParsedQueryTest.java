@@ -0,0 +1,102 @@
+package am.ik.query;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ParsedQueryTest {
+
+	@Test
+	void typingReusesUntouchedNodes() {
+		ParsedQuery before = ParsedQuery.parse("hello (world or java) -spring");
+		ParsedQuery after = before.edit(29, 0, "boot");
+		assertThat(after.query()).isEqualTo("hello (world or java) -springboot");
+		List<Node> children = after.root().children();
+		assertThat(children).hasSize(3);
+		assertThat(children.get(0)).isSameAs(before.root().children().get(0));
+		assertThat(children.get(1)).isSameAs(before.root().children().get(1));
+		assertThat(children.get(2)).isEqualTo(new TokenNode(TokenType.EXCLUDE, "springboot"));
+		assertThat(QueryFixtures.render(before.root()))
+			.isEqualTo(QueryFixtures.render(QueryParser.parseQuery("hello (world or java) -spring")));
+	}
+
+	@Test
+	void editInsideGroupRebuildsOnlyThatGroup() {
+		ParsedQuery before = ParsedQuery.parse("a (b (c d) e) (f g)");
+		ParsedQuery after = before.edit(11, 1, "x");
+		RootNode group = (RootNode) after.root().children().get(1);
+		RootNode previous = (RootNode) before.root().children().get(1);
+		assertThat(group).isNotSameAs(previous);
+		assertThat(group.children()).extracting(Node::value).containsExactly("b", "root", "x");
+		// the nested group and the siblings are untouched
+		assertThat(group.children().get(1)).isSameAs(previous.children().get(1));
+		assertThat(after.root().children().get(0)).isSameAs(before.root().children().get(0));
+		assertThat(after.root().children().get(2)).isSameAs(before.root().children().get(2));
+		// the previous result is left as it was
+		assertThat(previous.children()).extracting(Node::value).containsExactly("b", "root", "e");
+	}
+
+	@Test
+	void unbalancingEditFallsBackToFullParse() {
+		ParsedQuery parsed = ParsedQuery.parse("a (b c) d");
+		parsed = parsed.edit(6, 1, "");
+		assertThat(QueryFixtures.render(parsed.root()))
+			.isEqualTo(QueryFixtures.render(QueryParser.parseQuery("a (b c d")));
+		parsed = parsed.edit(0, 0, ")");
+		assertThat(parsed.root().children()).isEmpty();
+		parsed = parsed.edit(0, 1, "");
+		assertThat(QueryFixtures.render(parsed.root()))
+			.isEqualTo(QueryFixtures.render(QueryParser.parseQuery("a (b c d")));
+	}
+
+	@Test
+	void editDeeplyNestedQuery() {
+		int depth = 50_000;
+		ParsedQuery parsed = ParsedQuery.parse("(".repeat(depth) + "a" + ")".repeat(depth));
+		parsed = parsed.edit(depth, 1, "b c");
+		RootNode node = parsed.root();
+		for (int i = 0; i < depth; i++) {
+			node = (RootNode) node.children().get(0);
+		}
+		assertThat(node.children()).extracting(Node::value).containsExactly("b", "c");
+	}
+
+	@Test
+	void sameTreeAsFullParse() {
+		String[] alphabet = { "a", "b", "or", " ", " ", "-", "\"", "(", ")", "=", "日", "x-y" };
+		Random random = new Random(42);
+		for (int n = 0; n < 2_000; n++) {
+			String query = QueryFixtures.random(random, alphabet, 20);
+			ParsedQuery parsed = parse(query);
+			if (parsed == null) {
+				continue;
+			}
+			for (int k = 0; k < 20; k++) {
+				int offset = random.nextInt(query.length() + 1);
+				int removed = random.nextInt(Math.min(3, query.length() - offset) + 1);
+				String inserted = QueryFixtures.random(random, alphabet, 3);
+				String edited = query.substring(0, offset) + inserted + query.substring(offset + removed);
+				String expected = QueryFixtures.parse(() -> QueryParser.parseQuery(edited));
+				if (expected.equals("error")) {
+					continue;
+				}
+				parsed = parsed.edit(offset, removed, inserted);
+				assertThat(QueryFixtures.render(parsed.root())).as("%s -> %s", query, edited).isEqualTo(expected);
+				query = edited;
+			}
+		}
+	}
+
+	static ParsedQuery parse(String query) {
+		try {
+			return ParsedQuery.parse(query);
+		}
+		catch (IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,117 @@
+package am.ik.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class QueryCacheTest {
+
+	@Test
+	void shareCachedTrees() {
+		QueryCache cache = new QueryCache(10);
+		RootNode tree = cache.parseQuery("hello (world or java)");
+		assertThat(tree).isEqualTo(QueryParser.parseQuery("hello (world or java)"));
+		assertThat(tree.freeze()).isSameAs(tree);
+		assertThat(cache.parseQuery(new StringBuilder("hello (world or java)"))).isSameAs(tree);
+		assertThat(cache.hitCount()).isEqualTo(1);
+		assertThat(cache.missCount()).isEqualTo(1);
+		assertThat(cache.size()).isEqualTo(1);
+	}
+
+	@Test
+	void keepFrequentQueriesDuringScans() {
+		QueryCache cache = new QueryCache(4);
+		int rare = 0;
+		for (int round = 0; round < 200; round++) {
+			cache.parseQuery("popular 0");
+			cache.parseQuery("popular 1");
+			// more one-off queries than fit, which would flush an LRU cache every round
+			for (int i = 0; i < 10; i++) {
+				cache.parseQuery("rare " + rare++);
+			}
+		}
+		assertThat(cache.size()).isEqualTo(4);
+		assertThat(cache.evictionCount()).isPositive();
+		// only the first few rounds miss the popular queries
+		assertThat(cache.hitCount()).isGreaterThan(380);
+	}
+
+	@Test
+	void shareTreesOfEquivalentQueries() {
+		QueryCache cache = new QueryCache(10, new QueryCanonicalizer(true));
+		RootNode tree = cache.parseQuery("hello world");
+		assertThat(cache.parseQuery("Hello  world ")).isSameAs(tree);
+		assertThat(cache.parseQuery("(hello WORLD)")).isSameAs(tree);
+		assertThat(cache.parseQuery("Hello  world ")).isSameAs(tree);
+		assertThat(cache.hitCount()).isEqualTo(1);
+		assertThat(cache.size()).isEqualTo(3);
+		for (int i = 0; i < 100; i++) {
+			cache.parseQuery("other " + i);
+		}
+		assertThat(cache.parseQuery("HELLO world")).isEqualTo(tree);
+	}
+
+	@Test
+	void doNotCacheMalformedQueries() {
+		QueryCache cache = new QueryCache(10);
+		assertThatThrownBy(() -> cache.parseQuery("a \"")).isInstanceOf(IndexOutOfBoundsException.class);
+		assertThatThrownBy(() -> cache.parseQuery("a \"")).isInstanceOf(IndexOutOfBoundsException.class);
+		assertThat(cache.size()).isZero();
+		assertThat(cache.missCount()).isEqualTo(2);
+	}
+
+	@Test
+	void stayBoundedUnderConcurrentAccess() throws Exception {
+		QueryCache cache = new QueryCache(64);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				int seed = t;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < 20_000; i++) {
+						String query = "q" + ((i * 31 + seed) % 200) + " (a or b)";
+						assertThat(cache.parseQuery(query)).isEqualTo(QueryParser.parseQuery(query));
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+		assertThat(cache.size()).isLessThanOrEqualTo(64);
+		assertThat(cache.hitCount() + cache.missCount()).isEqualTo(80_000);
+	}
+
+	@Test
+	void frequenciesFadeAfterASample() {
+		QueryCache.FrequencySketch sketch = new QueryCache.FrequencySketch(1_024);
+		int popular = "popular".hashCode();
+		for (int i = 0; i < 20; i++) {
+			sketch.increment(popular);
+		}
+		assertThat(sketch.frequency(popular)).isEqualTo(15);
+		int increments = 0;
+		while (sketch.frequency(popular) == 15 && increments < 100_000) {
+			sketch.increment(increments++ * 0x9e3779b9);
+		}
+		assertThat(sketch.frequency(popular)).isEqualTo(7);
+		assertThat(increments).isLessThan(100_000);
+	}
+
+	@Test
+	void sizeMustBePositive() {
+		assertThatThrownBy(() -> new QueryCache(0)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+}
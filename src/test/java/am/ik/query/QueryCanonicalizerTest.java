@@ -0,0 +1,68 @@
+package am.ik.query;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QueryCanonicalizerTest {
+
+	static final QueryCanonicalizer FOLDING = new QueryCanonicalizer(true);
+
+	@Test
+	void equivalentQueriesShareFingerprint() {
+		CanonicalQuery expected = canonicalize(FOLDING, "hello \"big world\" (a OR b) Status=OK");
+		for (String query : List.of("hello  \" big\tworld \"  (a or b) status=ok ",
+				"Hello \"BIG world\" ((a or b)) status=OK", "((hello)) \"big  world\" (a Or b) (STATUS=ok)")) {
+			CanonicalQuery canonical = canonicalize(FOLDING, query);
+			assertThat(canonical.root()).as(query).isEqualTo(expected.root());
+			assertThat(canonical.fingerprint()).as(query).isEqualTo(expected.fingerprint());
+		}
+		assertThat(QueryFixtures.render(expected.root()))
+			.isEqualTo("(KEYWORD:hello PHRASE:big world (KEYWORD:a OR:or KEYWORD:b ) FIELD:status=ok )");
+	}
+
+	@Test
+	void differentQueriesDoNotShareFingerprint() {
+		QueryCanonicalizer canonicalizer = new QueryCanonicalizer(false);
+		long fingerprint = canonicalize(canonicalizer, "hello world").fingerprint();
+		assertThat(canonicalize(canonicalizer, "Hello world").fingerprint()).isNotEqualTo(fingerprint);
+		assertThat(canonicalize(canonicalizer, "\"hello world\"").fingerprint()).isNotEqualTo(fingerprint);
+		assertThat(canonicalize(canonicalizer, "hello (world)").fingerprint()).isEqualTo(fingerprint);
+		assertThat(canonicalize(canonicalizer, "(hello world)").fingerprint()).isEqualTo(fingerprint);
+		assertThat(canonicalize(canonicalizer, "hello (world x)").fingerprint()).isNotEqualTo(fingerprint);
+		assertThat(canonicalize(canonicalizer, "hello world=").fingerprint()).isNotEqualTo(fingerprint);
+		// a group of a lone OR would join the terms around it if it was removed
+		assertThat(canonicalize(canonicalizer, "a (or) b").root()).isEqualTo(QueryParser.parseQuery("a (or) b"));
+	}
+
+	@Test
+	void fingerprintIsStable() {
+		assertThat(canonicalize(FOLDING, "hello (world or java) -spring").fingerprint())
+			.isEqualTo(canonicalize(FOLDING, "hello (world or java) -spring").fingerprint())
+			.isEqualTo(0x91e76a6d6d5d5879L);
+	}
+
+	@Test
+	void reuseCanonicalNodes() {
+		RootNode root = QueryParser.parseQuery("a (b c) -d");
+		assertThat(FOLDING.canonicalize(root).root()).isSameAs(root);
+		RootNode mixed = QueryParser.parseQuery("a (b c) D");
+		RootNode canonical = FOLDING.canonicalize(mixed).root();
+		assertThat(canonical.children().get(0)).isSameAs(mixed.children().get(0));
+		assertThat(canonical.children().get(1)).isSameAs(mixed.children().get(1));
+		assertThat(canonical.children().get(2)).isEqualTo(new TokenNode(TokenType.KEYWORD, "d"));
+	}
+
+	@Test
+	void deeplyNestedGroups() {
+		String query = QueryFixtures.deeplyNested("a b");
+		assertThat(FOLDING.canonicalize(QueryParser.parseQuery(query)).root()).isEqualTo(QueryParser.parseQuery("a b"));
+	}
+
+	static CanonicalQuery canonicalize(QueryCanonicalizer canonicalizer, String query) {
+		return canonicalizer.canonicalize(QueryParser.parseQuery(query));
+	}
+
+}
@@ -0,0 +1,125 @@
+package am.ik.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Queries and helpers shared by the tests of this package.
+ */
+final class QueryFixtures {
+
+	/**
+	 * Depth of {@link #deeplyNested(String)} groups, which overflows the stack of code
+	 * that recurses into groups.
+	 */
+	static final int DEPTH = 100_000;
+
+	/**
+	 * Terms of {@link #randomQueries(int)}, which join into all kinds of tokens,
+	 * unbalanced quotes and parentheses, and characters outside of ASCII.
+	 */
+	static final String[] QUERY_TERMS = { "a", "OR", "\"b c\"", "\"", "-d", "e=f", "g-h", "(", ")", " ", "東京" };
+
+	private QueryFixtures() {
+	}
+
+	static String deeplyNested(String query) {
+		return "(".repeat(DEPTH) + query + ")".repeat(DEPTH);
+	}
+
+	/**
+	 * Returns {@code count} queries of up to 11 {@link #QUERY_TERMS}, which are the same
+	 * on every run.
+	 */
+	static List<String> randomQueries(int count) {
+		Random random = new Random(42);
+		List<String> queries = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			queries.add(random(random, QUERY_TERMS, 12));
+		}
+		return queries;
+	}
+
+	static String random(Random random, String[] alphabet, int maxLength) {
+		StringBuilder builder = new StringBuilder();
+		int length = random.nextInt(maxLength);
+		for (int i = 0; i < length; i++) {
+			builder.append(alphabet[random.nextInt(alphabet.length)]);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Renders the tree returned by {@code parser}, or {@code error} and the message of a
+	 * {@link QueryParseException} if parsing fails, so that outcomes of different parsers
+	 * can be compared.
+	 */
+	static String parse(Supplier<RootNode> parser) {
+		try {
+			return render(parser.get());
+		}
+		catch (IndexOutOfBoundsException e) {
+			return "error";
+		}
+		catch (QueryParseException e) {
+			return e.getMessage();
+		}
+	}
+
+	static String render(Node node) {
+		if (node instanceof RootNode) {
+			StringBuilder builder = new StringBuilder("(");
+			for (Node child : ((RootNode) node).children()) {
+				builder.append(render(child)).append(' ');
+			}
+			return builder.append(')').toString();
+		}
+		if (node instanceof FieldNode) {
+			return TokenType.FIELD + ":" + ((FieldNode) node).name() + "=" + node.value();
+		}
+		return ((TokenNode) node).type() + ":" + node.value();
+	}
+
+	/**
+	 * Input that counts how many characters are read from it, one by one or copied into
+	 * token values.
+	 */
+	static final class CountingChars implements CharSequence {
+
+		private final String chars;
+
+		long reads;
+
+		long copies;
+
+		CountingChars(String chars) {
+			this.chars = chars;
+		}
+
+		@Override
+		public int length() {
+			return this.chars.length();
+		}
+
+		@Override
+		public char charAt(int index) {
+			this.reads++;
+			return this.chars.charAt(index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			this.copies += end - start;
+			return this.chars.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return this.chars;
+		}
+
+	}
+
+}
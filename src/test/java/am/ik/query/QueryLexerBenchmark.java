@@ -0,0 +1,159 @@
+package am.ik.query;
+
+import java.util.Random;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Lexer throughput on mixed ASCII/Japanese queries. Run with
+ * {@code ./mvnw test -Dtest=QueryLexerBenchmark -Dbenchmark=true}.
+ * <p>
+ * To compare with an earlier revision, check it out next to this one with
+ * {@code git worktree add}, copy this class into it without the cases that the revision
+ * does not support yet, and run both alternately on an idle machine. Apart from their
+ * scalar and vector variants, {@link #tokenize()} and {@link #tokenizeLongQuery()} only
+ * need {@code new QueryLexer(CharSequence)} and {@link QueryLexer#advance()}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class QueryLexerBenchmark {
+
+	static final String[] TERMS = { "hello", "world", "java", "spring-boot", "status=500", "\"error log\"", "-internal",
+			"or", "東京", "検索クエリ", "\"日本語 フレーズ\"", "-除外", "title=設計", "(prod or staging)", "サーバー-エラー" };
+
+	/**
+	 * Tokens counted by the benchmarks, so that the JIT cannot drop lexing as dead code.
+	 */
+	static int tokens;
+
+	@Test
+	void tokenize() {
+		String[] queries = queries(1_000);
+		System.out.printf("QueryLexer: %.1f Mchars/s%n", throughput(queries, () -> lex(queries)));
+		System.out.printf("QueryLexer (scalar): %.1f Mchars/s%n", throughput(queries, () -> lexScalar(queries)));
+	}
+
+	@Test
+	void tokenizeLongQuery() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; builder.length() < 500_000; i++) {
+			builder.append(i > 0 ? " OR " : "").append("order_id_").append(1_000_000_000L + i * 7919L);
+		}
+		compare("long query", builder.toString());
+		builder.setLength(0);
+		Random random = new Random(42);
+		while (builder.length() < 500_000) {
+			builder.append(builder.length() > 0 ? " " : "");
+			for (int i = 0; i < 256; i++) {
+				builder.append((char) ('a' + random.nextInt(26)));
+			}
+		}
+		compare("long terms", builder.toString());
+	}
+
+	static void compare(String name, String query) {
+		System.out.printf("QueryLexer (%s): %.1f Mchars/s%n", name, throughput(query, () -> new QueryLexer(query)));
+		System.out.printf("QueryLexer (%s, scalar): %.1f Mchars/s%n", name,
+				throughput(query, () -> new QueryLexer(query, DelimiterIndex.NONE)));
+		if (DelimiterIndex.isVectorized()) {
+			System.out.printf("QueryLexer (%s, vector): %.1f Mchars/s%n", name,
+					throughput(query, () -> new QueryLexer(query)));
+		}
+	}
+
+	@Test
+	void tokenizeIntoBuffers() {
+		StringBuilder builder = new StringBuilder();
+		Random random = new Random(42);
+		while (builder.length() < 500_000) {
+			builder.append(TERMS[random.nextInt(TERMS.length)]).append(' ');
+		}
+		String query = builder.toString();
+		PackedTokens packed = new PackedTokens(query);
+		System.out.printf("TokenStream: %.1f Mchars/s%n", throughput(query, () -> QueryLexer.tokenize(query)));
+		System.out.printf("PackedTokens: %.1f Mchars/s%n", throughput(query, () -> packed.reset(query)));
+	}
+
+	static double throughput(String[] queries, IntSupplier lexer) {
+		long chars = 0;
+		for (String query : queries) {
+			chars += query.length();
+		}
+		for (int i = 0; i < 200; i++) {
+			tokens += lexer.getAsInt();
+		}
+		// best of several rounds to filter out GC and compilation noise
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < 20; round++) {
+			long start = System.nanoTime();
+			tokens += lexer.getAsInt();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return chars / (best / 1e9) / 1e6;
+	}
+
+	static double throughput(String query, Runnable tokenizer) {
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < 50; round++) {
+			long start = System.nanoTime();
+			tokenizer.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return query.length() / (best / 1e9) / 1e6;
+	}
+
+	static double throughput(String query, Supplier<QueryLexer> lexers) {
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < 50; round++) {
+			long start = System.nanoTime();
+			QueryLexer lexer = lexers.get();
+			while (lexer.advance()) {
+				// consume
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return query.length() / (best / 1e9) / 1e6;
+	}
+
+	static int lex(String[] queries) {
+		int tokens = 0;
+		for (String query : queries) {
+			QueryLexer lexer = new QueryLexer(query);
+			while (lexer.advance()) {
+				tokens++;
+			}
+		}
+		return tokens;
+	}
+
+	static int lexScalar(String[] queries) {
+		int tokens = 0;
+		for (String query : queries) {
+			QueryLexer lexer = new QueryLexer(query, DelimiterIndex.NONE);
+			while (lexer.advance()) {
+				tokens++;
+			}
+		}
+		return tokens;
+	}
+
+	static String[] queries(int count) {
+		Random random = new Random(42);
+		String[] queries = new String[count];
+		for (int i = 0; i < count; i++) {
+			StringBuilder builder = new StringBuilder();
+			int terms = 2 + random.nextInt(8);
+			for (int j = 0; j < terms; j++) {
+				if (j > 0) {
+					builder.append(' ');
+				}
+				builder.append(TERMS[random.nextInt(TERMS.length)]);
+			}
+			queries[i] = builder.toString();
+		}
+		return queries;
+	}
+
+}
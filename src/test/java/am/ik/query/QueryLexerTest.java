@@ -0,0 +1,217 @@
+package am.ik.query;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class QueryLexerTest {
+
+	@Test
+	void tokensReferenceSourceOffsets() {
+		String input = "hello \"big world\" -java (x or y)";
+		TokenStream tokens = QueryLexer.tokenize(input);
+		assertThat(tokens).extracting(Token::type)
+			.containsExactly(TokenType.KEYWORD, TokenType.WHITESPACE, TokenType.PHRASE, TokenType.WHITESPACE,
+					TokenType.EXCLUDE, TokenType.WHITESPACE, TokenType.LPAREN, TokenType.KEYWORD, TokenType.WHITESPACE,
+					TokenType.OR, TokenType.WHITESPACE, TokenType.KEYWORD, TokenType.RPAREN);
+		for (Token token : tokens) {
+			assertThat(token.source()).isSameAs(input);
+			assertThat(token.value()).isEqualTo(input.substring(token.start(), token.end()));
+		}
+		Token phrase = tokens.get(2);
+		assertThat(phrase.start()).isEqualTo(7);
+		assertThat(phrase.end()).isEqualTo(16);
+		assertThat(phrase.text().toString()).isEqualTo("big world");
+	}
+
+	@Test
+	void tokensCompareByContent() {
+		TokenStream tokens = QueryLexer.tokenize("hello world");
+		assertThat(tokens.get(2)).isEqualTo(new Token(TokenType.KEYWORD, "world"));
+		assertThat(tokens.get(2)).hasSameHashCodeAs(new Token(TokenType.KEYWORD, "world"));
+		assertThat(tokens.get(2)).isNotEqualTo(new Token(TokenType.PHRASE, "world"));
+		assertThat(tokens.get(2)).hasToString("Token[type=KEYWORD, value=world]");
+	}
+
+	@Test
+	void fieldsAreSplitWhenLexed() {
+		QueryLexer lexer = new QueryLexer(new StringReader("=a 東京=x=y k= or=1"));
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.KEYWORD, "=a"));
+		lexer.advance();
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.FIELD, "東京=x=y"));
+		assertThat(lexer.fieldName()).isEqualTo("東京");
+		assertThat(lexer.fieldValue()).isEqualTo("x=y");
+		lexer.advance();
+		lexer.advance();
+		assertThat(lexer.type()).isEqualTo(TokenType.FIELD);
+		assertThat(lexer.fieldName()).isEqualTo("k");
+		assertThat(lexer.fieldValue()).isEmpty();
+		lexer.advance();
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.FIELD, "or=1"));
+		assertThat(lexer.hasNext()).isFalse();
+	}
+
+	@Test
+	void excludedFields() {
+		QueryLexer lexer = new QueryLexer(new StringReader("-status=500 -=x -a-b=c -東京=x=y"));
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.EXCLUDED_FIELD, "status=500"));
+		assertThat(lexer.fieldName()).isEqualTo("status");
+		assertThat(lexer.fieldValue()).isEqualTo("500");
+		lexer.advance();
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.EXCLUDE, "=x"));
+		lexer.advance();
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.EXCLUDE, "a-b=c"));
+		lexer.advance();
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.EXCLUDED_FIELD, "東京=x=y"));
+		assertThat(lexer.fieldName()).isEqualTo("東京");
+		assertThat(lexer.fieldValue()).isEqualTo("x=y");
+		assertThat(lexer.hasNext()).isFalse();
+	}
+
+	@Test
+	void pullTokensOnDemand() {
+		QueryLexer lexer = new QueryLexer("hello-world (java)");
+		assertThat(lexer.advance()).isTrue();
+		assertThat(lexer.type()).isEqualTo(TokenType.KEYWORD);
+		assertThat(lexer.value()).isEqualTo("hello-world");
+		assertThat(lexer.position()).isEqualTo(11);
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.WHITESPACE, " "));
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.LPAREN, "("));
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.KEYWORD, "java"));
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.RPAREN, ")"));
+		assertThat(lexer.hasNext()).isFalse();
+		assertThat(lexer.advance()).isFalse();
+	}
+
+	@Test
+	void lexRangeOfLargerSource() {
+		String body = "{\"q\":\"hello-world (java)\"}";
+		int start = body.indexOf("hello");
+		int end = body.lastIndexOf('"');
+		QueryLexer lexer = new QueryLexer(body, start, end);
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.KEYWORD, "hello-world"));
+		assertThat(lexer.start()).isEqualTo(start);
+		lexer.next();
+		lexer.next();
+		Token java = lexer.next();
+		assertThat(java.source()).isSameAs(body);
+		assertThat(java.start()).isEqualTo(body.indexOf("java"));
+		assertThat(lexer.next()).isEqualTo(new Token(TokenType.RPAREN, ")"));
+		assertThat(lexer.hasNext()).isFalse();
+	}
+
+	@Test
+	void lexCharBuffer() {
+		CharBuffer buffer = CharBuffer.wrap("xxhello (world)");
+		buffer.position(2);
+		TokenStream tokens = QueryLexer.tokenize(buffer);
+		assertThat(buffer.position()).isEqualTo(2);
+		assertThat(tokens).containsExactly(new Token(TokenType.KEYWORD, "hello"), new Token(TokenType.WHITESPACE, " "),
+				new Token(TokenType.LPAREN, "("), new Token(TokenType.KEYWORD, "world"),
+				new Token(TokenType.RPAREN, ")"));
+		assertThat(tokens.get(3).start()).isEqualTo(7);
+	}
+
+	@Test
+	void lexReaderInChunks() {
+		String query = "hello-world \"big phrase\" -java " + "(x or y) ".repeat(200);
+		Reader reader = new StringReader(query) {
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				return super.read(cbuf, off, Math.min(len, 3));
+			}
+		};
+		TokenStream fromReader = QueryLexer.tokenize(reader);
+		TokenStream fromString = QueryLexer.tokenize(query);
+		assertThat(fromReader).isEqualTo(fromString);
+		for (int i = 0; i < fromString.size(); i++) {
+			assertThat(fromReader.get(i).start()).isEqualTo(fromString.get(i).start());
+		}
+		assertThat(QueryParser.parseQuery(new StringReader(query)).children()).hasSize(203);
+		QueryLexer lexer = new QueryLexer(new StringReader(query));
+		lexer.advance();
+		assertThat(drain(lexer.reset(query))).isEqualTo(fromString);
+	}
+
+	@Test
+	void delimiterIndexProducesSameTokens() {
+		String[] terms = { "id-12345", "OR", "or", "\"quoted phrase\"", "-excluded", "key=value", "(", ")", " ", "\t",
+				"\u3000", "\u2028", "\u00a0", "東京", "a-b-c", "x=\"y z\"", "ü" };
+		Random random = new Random(99);
+		QueryLexer reused = null;
+		for (int n = 0; n < 20; n++) {
+			StringBuilder builder = new StringBuilder();
+			while (builder.length() < DelimiterIndex.BLOCK_SIZE * 3 + random.nextInt(100)) {
+				builder.append(terms[random.nextInt(terms.length)]);
+			}
+			// never end on a lone quote, which the lexer rejects
+			String query = builder.append(" end").toString();
+			TokenStream scalar = drain(new QueryLexer(query, DelimiterIndex.NONE));
+			DelimiterIndex index = new DelimiterIndex(query, 0, query.length(),
+					new DelimiterIndex.ScalarBlockScanner());
+			assertThat(drain(new QueryLexer(query, index))).isEqualTo(scalar);
+			assertThat(QueryLexer.tokenize(query)).isEqualTo(scalar);
+			// a reset lexer reuses the index with its block
+			reused = (reused != null) ? reused.reset(query) : new QueryLexer(query, index);
+			assertThat(drain(reused)).isEqualTo(scalar);
+		}
+	}
+
+	@Test
+	void vectorIndexMatchesScalarIndex() {
+		assumeTrue(DelimiterIndex.isVectorized(), "jdk.incubator.vector is not available");
+		Random random = new Random(7);
+		char[] alphabet = "ab -\"()=\t\n\u001f!\u1680\u2000\u3000\u3001\uffff日".toCharArray();
+		for (int n = 0; n < 50; n++) {
+			char[] chars = new char[DelimiterIndex.MIN_LENGTH + random.nextInt(DelimiterIndex.BLOCK_SIZE * 2)];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = alphabet[random.nextInt(alphabet.length)];
+			}
+			String input = new String(chars);
+			DelimiterIndex vector = DelimiterIndex.of(input, 0, input.length());
+			DelimiterIndex scalar = new DelimiterIndex(input, 0, input.length(),
+					new DelimiterIndex.ScalarBlockScanner());
+			for (int i = 0; i < input.length(); i++) {
+				assertThat(vector.next(i)).isEqualTo(scalar.next(i));
+			}
+		}
+	}
+
+	@Test
+	void hyphenatedKeywordsStartAtPreviousWord() {
+		TokenStream tokens = QueryLexer.tokenize("x a-b-c (-d \"p q\"-r k(-s");
+		assertThat(tokens).filteredOn(token -> token.type() != TokenType.WHITESPACE)
+			.extracting(Token::type, Token::value)
+			.containsExactly(tuple(TokenType.KEYWORD, "x"), tuple(TokenType.KEYWORD, "a-b-c"),
+					tuple(TokenType.KEYWORD, "(-d"), tuple(TokenType.KEYWORD, "q\"-r"), tuple(TokenType.KEYWORD, "k"),
+					tuple(TokenType.KEYWORD, "k(-s"));
+	}
+
+	@Test
+	void hyphenChainsAreLexedInLinearTime() {
+		String[] units = { "a-", "a(-", "(-a", "\"a b\"-", "x\"y\"-", "k=v-", "-a-", "a-\"" };
+		for (String unit : units) {
+			QueryFixtures.CountingChars input = new QueryFixtures.CountingChars(unit.repeat(16_000) + "z");
+			drain(new QueryLexer(input));
+			// reading back to the start of the chain at every hyphen would be quadratic
+			assertThat(input.reads).as(unit).isLessThan(4L * input.length());
+		}
+	}
+
+	static TokenStream drain(QueryLexer lexer) {
+		TokenStream tokens = new TokenStream();
+		while (lexer.hasNext()) {
+			tokens.add(lexer.next());
+		}
+		return tokens;
+	}
+
+}
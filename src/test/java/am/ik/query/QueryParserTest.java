@@ -1,8 +1,14 @@
 package am.ik.query;
 
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class QueryParserTest {
 
@@ -181,9 +187,242 @@ class QueryParserTest {
 		RootNode node = QueryParser.parseQuery("foo=\"bar\"");
 		assertThat(node.hasChildren()).isTrue();
 		assertThat(node.children()).hasSize(1);
-		assertThat(node.children().get(0)).isInstanceOf(TokenNode.class);
-		assertThat(((TokenNode) node.children().get(0)).type()).isEqualTo(TokenType.KEYWORD);
-		assertThat(node.children().get(0).value()).isEqualTo("foo=\"bar\"");
+		assertThat(node.children().get(0)).isInstanceOf(FieldNode.class);
+		assertThat(((FieldNode) node.children().get(0)).name()).isEqualTo("foo");
+		assertThat(node.children().get(0).value()).isEqualTo("\"bar\"");
+	}
+
+	@Test
+	void fieldNamesAreInterned() {
+		RootNode node = QueryParser.parseQuery(new StringBuilder("status=500 (status=404 or =x) hello-status=1"));
+		FieldNode field = (FieldNode) node.children().get(0);
+		assertThat(field.name()).isSameAs("status");
+		assertThat(field.value()).isEqualTo("500");
+		RootNode group = (RootNode) node.children().get(1);
+		assertThat(((FieldNode) group.children().get(0)).name()).isSameAs("status");
+		assertThat(group.children().get(2)).isEqualTo(keyword("=x"));
+		assertThat(node.children().get(2)).isEqualTo(keyword("hello-status=1"));
+		assertThat(QueryParser.parseBooleanQuery("a=b -c=d"))
+			.isEqualTo(new AndNode(List.of(new FieldNode("a", "b"), new NotNode(new FieldNode("c", "d")))));
+		assertThat(QueryParser.parseQuery("-c=d"))
+			.isEqualTo(new RootNode(List.of(new TokenNode(TokenType.EXCLUDE, "c=d"))));
+	}
+
+	@Test
+	void stopAfterMaxTerms() {
+		RootNode node = QueryParser.parseQuery("hello (world or java) test", 2);
+		assertThat(node.children()).hasSize(2);
+		assertThat(node.children().get(0).value()).isEqualTo("hello");
+		RootNode root = (RootNode) node.children().get(1);
+		assertThat(root.children()).hasSize(1);
+		assertThat(root.children().get(0).value()).isEqualTo("world");
+	}
+
+	@Test
+	void stopWithoutLexingRest() {
+		String query = "hello world " + "x ".repeat(10_000);
+		QueryLexer lexer = new QueryLexer(query);
+		RootNode node = new QueryParser(lexer).parse(2);
+		assertThat(node.children()).hasSize(2);
+		assertThat(lexer.position()).isEqualTo("hello world".length());
+	}
+
+	@Test
+	void deeplyNestedGroupsDoNotOverflowStack() {
+		RootNode node = QueryParser.parseQuery(QueryFixtures.deeplyNested("a") + " b");
+		assertThat(node.children()).hasSize(2);
+		assertThat(node.children().get(1).value()).isEqualTo("b");
+		for (int i = 0; i < QueryFixtures.DEPTH; i++) {
+			node = (RootNode) node.children().get(0);
+		}
+		assertThat(node.children()).containsExactly(new TokenNode(TokenType.KEYWORD, "a"));
+	}
+
+	@Test
+	void parseTimeIsLinearInTokenCount() {
+		QueryFixtures.CountingChars input = new QueryFixtures.CountingChars(generateQuery(8_000));
+		TokenStream tokens = QueryLexer.tokenize(input);
+		long lexed = input.reads;
+		RootNode root = new QueryParser(tokens).parse();
+		// 8,000 terms joined by 799 ors
+		assertThat(root.children()).hasSize(8_799);
+		// tokens are lexed in one pass, and the parser visits each of them once, only
+		// copying the value of terms
+		assertThat(lexed).isLessThan(4L * input.length());
+		assertThat(input.reads).isEqualTo(lexed);
+		assertThat(input.copies).isLessThan(input.length());
+	}
+
+	@Test
+	void failWhenNestedDeeperThanMaxDepth() {
+		String query = "a ((b (c)) d)";
+		RootNode node = new QueryParser(new QueryLexer(query), 3).parse();
+		assertThat(node.children()).hasSize(2);
+		assertThatThrownBy(() -> new QueryParser(new QueryLexer(query), 2).parse())
+			.isInstanceOfSatisfying(QueryParseException.class, e -> assertThat(e.offset()).isEqualTo(6))
+			.hasMessage("Groups are nested deeper than 2 levels at offset 6");
+		assertThatThrownBy(() -> new QueryParser(new QueryLexer("(" + query), 0).parse())
+			.isInstanceOf(QueryParseException.class);
+		assertThatThrownBy(() -> new QueryParser(new QueryLexer("x"), -1)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void parsingStraightFromTheLexerBuildsSameTreesAsTokenStream() {
+		String[] alphabet = { "a", "b", "or", "OR", " ", "\t", "\u3000", "-", "\"", "(", ")", "=", "日本", "x-y", "k=v",
+				"((", "))" };
+		Random random = new Random(2024);
+		for (int n = 0; n < 20_000; n++) {
+			String query = QueryFixtures.random(random, alphabet, 16);
+			int maxTerms = random.nextInt(8);
+			int maxDepth = random.nextInt(4);
+			String expected = QueryFixtures
+				.parse(() -> new QueryParser(QueryLexer.tokenize(query).cursor(), maxDepth).parse(maxTerms));
+			// tokenizing up front fails on a lone trailing quote even when the parse
+			// would stop before it
+			if (!expected.equals("error")) {
+				assertThat(QueryFixtures.parse(() -> new QueryParser(new QueryLexer(query), maxDepth).parse(maxTerms)))
+					.as(query)
+					.isEqualTo(expected);
+			}
+		}
+	}
+
+	@Test
+	void resetParserBuildsSameTreesAsNewParser() {
+		String[] alphabet = { "a", "b", "or", " ", "-", "\"", "(", ")", "x-y", "k=v", "((", "))" };
+		Random random = new Random(7);
+		QueryParser parser = new QueryParser(3);
+		for (int n = 0; n < 5_000; n++) {
+			// some queries are long enough to be lexed with a delimiter index
+			String query = QueryFixtures.random(random, alphabet, (n % 10 == 0) ? 1_000 : 16);
+			int maxTerms = random.nextInt(8);
+			String expected = QueryFixtures.parse(() -> new QueryParser(new QueryLexer(query), 3).parse(maxTerms));
+			assertThat(QueryFixtures.parse(() -> parser.reset(query).parse(maxTerms))).as(query).isEqualTo(expected);
+		}
+		assertThat(new QueryParser().reset("a (b)").parse()).isEqualTo(QueryParser.parseQuery("a (b)"));
+		assertThat(new QueryParser(PackedTokens.tokenize("x")).reset("a (b)").parse())
+			.isEqualTo(QueryParser.parseQuery("a (b)"));
+	}
+
+	@Test
+	void parseBooleanBindsAndTighterThanOr() {
+		assertThat(QueryParser.parseBooleanQuery("a b or c -d"))
+			.isEqualTo(new OrNode(List.of(new AndNode(List.of(keyword("a"), keyword("b"))),
+					new AndNode(List.of(keyword("c"), new NotNode(keyword("d")))))));
+		assertThat(QueryParser.parseBooleanQuery("a (b or \"c d\")")).isEqualTo(new AndNode(
+				List.of(keyword("a"), new OrNode(List.of(keyword("b"), new TokenNode(TokenType.PHRASE, "c d"))))));
+	}
+
+	@Test
+	void parseBooleanNormalizesTree() {
+		// nested operators of the same kind are merged
+		assertThat(QueryParser.parseBooleanQuery("a (b (c)) d"))
+			.isEqualTo(new AndNode(List.of(keyword("a"), keyword("b"), keyword("c"), keyword("d"))));
+		assertThat(QueryParser.parseBooleanQuery("(a or b) or c"))
+			.isEqualTo(new OrNode(List.of(keyword("a"), keyword("b"), keyword("c"))));
+		// empty groups and dangling ORs are dropped
+		assertThat(QueryParser.parseBooleanQuery("or ((a)) () or or b or"))
+			.isEqualTo(new OrNode(List.of(keyword("a"), keyword("b"))));
+		assertThat(QueryParser.parseBooleanQuery("( ) or")).isEqualTo(new AndNode(List.of()));
+		assertThat(QueryParser.parseBooleanQuery("(a")).isEqualTo(keyword("a"));
+	}
+
+	@Test
+	void parseLenientReportsProblems() {
+		ParseResult result = QueryParser.parseLenientQuery("a) (b (c \"d e");
+		assertThat(result.diagnostics()).containsExactly(new Diagnostic(Diagnostic.Kind.UNMATCHED_CLOSE_PAREN, 1),
+				new Diagnostic(Diagnostic.Kind.UNCLOSED_GROUP, 3),
+				new Diagnostic(Diagnostic.Kind.UNTERMINATED_QUOTE, 9));
+		assertThat(QueryFixtures.render(result.root())).isEqualTo("(KEYWORD:a (KEYWORD:b (KEYWORD:c PHRASE:d e ) ) )");
+		assertThat(QueryParser.parseLenientQuery("a \"").diagnostics())
+			.containsExactly(new Diagnostic(Diagnostic.Kind.UNTERMINATED_QUOTE, 2));
+		ParseResult deep = new QueryParser(new QueryLexer("a ((b) c) d"), 1).parseLenient();
+		assertThat(deep.diagnostics()).containsExactly(new Diagnostic(Diagnostic.Kind.NESTING_TOO_DEEP, 3));
+		assertThat(deep.root()).isEqualTo(QueryParser.parseQuery("a (b c) d"));
+		ParseResult valid = QueryParser.parseLenientQuery("a (b \"c\")");
+		assertThat(valid.isValid()).isTrue();
+		assertThat(valid.root()).isEqualTo(QueryParser.parseQuery("a (b \"c\")"));
+	}
+
+	@Test
+	void parseLenientNeverThrows() {
+		String[] alphabet = { "a", "or", " ", "-", "\"", "(", ")", "x-y", "k=v", "((", "))", "\"\"" };
+		Random random = new Random(17);
+		for (int n = 0; n < 20_000; n++) {
+			String query = QueryFixtures.random(random, alphabet, 16);
+			ParseResult result = new QueryParser(new QueryLexer(query), 2).parseLenient();
+			if (result.isValid()) {
+				assertThat(result.root()).as(query).isEqualTo(new QueryParser(new QueryLexer(query), 2).parse());
+			}
+			// the same holds for UTF-8 input
+			byte[] utf8 = query.getBytes(StandardCharsets.UTF_8);
+			ParseResult fromBytes = new QueryParser(new Utf8QueryLexer(utf8), 2).parseLenient();
+			if (fromBytes.isValid()) {
+				assertThat(fromBytes.root()).as(query).isEqualTo(new QueryParser(new Utf8QueryLexer(utf8), 2).parse());
+			}
+		}
+	}
+
+	@Test
+	void parseLazyBuildsSameTreesAsParse() {
+		String[] alphabet = { "a", "or", " ", "-", "\"", "(", ")", "x-y", "k=v", "((", "))", ")-a", "a-(", "-(b)",
+				"\"(\"" };
+		Random random = new Random(18);
+		for (int n = 0; n < 20_000; n++) {
+			String query = QueryFixtures.random(random, alphabet, 16);
+			int maxDepth = random.nextInt(4);
+			String expected = QueryFixtures.parse(() -> new QueryParser(new QueryLexer(query), maxDepth).parse());
+			assertThat(QueryFixtures.parse(() -> new QueryParser(new QueryLexer(query), maxDepth).parseLazy()))
+				.as(query)
+				.isEqualTo(expected);
+			assertThat(QueryFixtures
+				.parse(() -> new QueryParser(new QueryLexer(new StringReader(query)), maxDepth).parseLazy())).as(query)
+				.isEqualTo(expected);
+		}
+	}
+
+	@Test
+	void parseLazyCachesGroups() {
+		RootNode root = QueryParser.parseLazyQuery("tenant=42 (a (b c)) d");
+		assertThat(root.children()).extracting(Node::value).containsExactly("42", "root", "d");
+		RootNode group = (RootNode) root.children().get(1);
+		assertThat(group.children().get(1)).isSameAs(group.children().get(1));
+		assertThat(root).isEqualTo(QueryParser.parseQuery("tenant=42 (a (b c)) d"));
+		assertThat(root.freeze()).isSameAs(root);
+	}
+
+	@Test
+	void parseLazyDoesNotDependOnMutableSources() {
+		StringBuilder query = new StringBuilder("a (b (c d)) e");
+		RootNode root = new QueryParser().reset(query).parseLazy();
+		query.setLength(0);
+		query.append("x".repeat(20));
+		assertThat(root).isEqualTo(QueryParser.parseQuery("a (b (c d)) e"));
+	}
+
+	@Test
+	void parseLazyTakesGroupValuesFromTheDictionary() {
+		TermDictionary dictionary = new TermDictionary(16);
+		String shared = dictionary.intern("shared");
+		RootNode root = new QueryParser(new QueryLexer("a (shared (b shared))", dictionary)).parseLazy();
+		RootNode group = (RootNode) root.children().get(1);
+		assertThat(group.children().get(0).value()).isSameAs(shared);
+		assertThat(((RootNode) group.children().get(1)).children().get(1).value()).isSameAs(shared);
+	}
+
+	static TokenNode keyword(String value) {
+		return new TokenNode(TokenType.KEYWORD, value);
+	}
+
+	static String generateQuery(int terms) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < terms; i++) {
+			if (i > 0) {
+				builder.append(i % 10 == 0 ? " or " : " ");
+			}
+			builder.append(i % 7 == 0 ? "(k" + i + ")" : "k" + i);
+		}
+		return builder.toString();
 	}
 
-}
\ No newline at end of file
+}
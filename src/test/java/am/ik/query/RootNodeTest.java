@@ -0,0 +1,63 @@
+package am.ik.query;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RootNodeTest {
+
+	@Test
+	void parsedGroupsAreFrozen() {
+		RootNode root = QueryParser.parseQuery("a (b c) ()");
+		assertThat(root.freeze()).isSameAs(root);
+		assertThatThrownBy(() -> root.children().add(new RootNode())).isInstanceOf(UnsupportedOperationException.class);
+		RootNode group = (RootNode) root.children().get(1);
+		assertThatThrownBy(() -> group.children().set(0, new RootNode()))
+			.isInstanceOf(UnsupportedOperationException.class);
+		assertThat(((RootNode) root.children().get(2)).hasChildren()).isFalse();
+	}
+
+	@Test
+	void equalsComparesStructure() {
+		RootNode root = QueryParser.parseQuery("a (b \"c d\") -e");
+		RootNode same = QueryParser.parseQuery("a  ( b \"c d\" )  -e");
+		assertThat(root).isNotSameAs(same).isEqualTo(same).hasSameHashCodeAs(same);
+		assertThat(root).isNotEqualTo(QueryParser.parseQuery("a (b \"c d\" -e)"));
+		assertThat(root).isNotEqualTo(QueryParser.parseQuery("a (b c d) -e"));
+		assertThat(new RootNode()).isEqualTo(QueryParser.parseQuery("")).isNotEqualTo(root);
+	}
+
+	@Test
+	void freezeMutableGroups() {
+		RootNode group = new RootNode();
+		group.children().add(new TokenNode(TokenType.KEYWORD, "b"));
+		RootNode root = new RootNode();
+		root.children().add(new TokenNode(TokenType.KEYWORD, "a"));
+		root.children().add(group);
+		RootNode parsed = QueryParser.parseQuery("a (b)");
+		assertThat(root).isEqualTo(parsed).hasSameHashCodeAs(parsed);
+		RootNode frozen = root.freeze();
+		assertThat(frozen).isNotSameAs(root).isEqualTo(parsed).hasSameHashCodeAs(parsed);
+		assertThat(frozen.children().get(1)).isNotSameAs(group);
+		// frozen subtrees are shared
+		RootNode view = FlatQuery.parse("x (y z)").root();
+		RootNode mixed = new RootNode();
+		mixed.children().add(parsed);
+		mixed.children().add(view);
+		RootNode frozenMixed = mixed.freeze();
+		assertThat(frozenMixed.children().get(0)).isSameAs(parsed);
+		assertThat(frozenMixed.children().get(1)).isEqualTo(QueryParser.parseQuery("x (y z)"));
+	}
+
+	@Test
+	void deeplyNestedGroups() {
+		String query = QueryFixtures.deeplyNested("a");
+		RootNode root = QueryParser.parseQuery(query);
+		RootNode view = FlatQuery.parse(query).root();
+		assertThat(root.equals(view)).isTrue();
+		assertThat(view.freeze().hashCode()).isEqualTo(root.hashCode());
+		assertThat(root.equals(QueryParser.parseQuery(QueryFixtures.deeplyNested("b")))).isFalse();
+	}
+
+}
@@ -0,0 +1,86 @@
+package am.ik.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TermDictionaryTest {
+
+	@Test
+	void shareValuesAcrossQueries() {
+		TermDictionary dictionary = new TermDictionary(100);
+		RootNode first = QueryParser.parseQuery("error (status=500 or \"time out\")", dictionary);
+		RootNode second = QueryParser.parseQuery(new StringBuilder("\"time out\" error status=500"), dictionary);
+		assertThat(first).isEqualTo(QueryParser.parseQuery("error (status=500 or \"time out\")"));
+		RootNode group = (RootNode) first.children().get(1);
+		assertThat(second.children().get(1).value()).isSameAs(first.children().get(0).value());
+		assertThat(second.children().get(0).value()).isSameAs(group.children().get(2).value());
+		assertThat(second.children().get(2).value()).isSameAs(group.children().get(0).value());
+		// error, status, 500, or and time out
+		assertThat(dictionary.size()).isEqualTo(5);
+		assertThat(dictionary.missCount()).isEqualTo(5);
+		assertThat(dictionary.hitCount()).isEqualTo(4);
+		assertThat(dictionary.hitRate()).isEqualTo(4 / 9.0);
+	}
+
+	@Test
+	void assignStableIds() {
+		TermDictionary dictionary = new TermDictionary(100);
+		int error = dictionary.id("error");
+		int warn = dictionary.id(new StringBuilder("warn"));
+		assertThat(error).isNotEqualTo(warn);
+		assertThat(dictionary.id("error")).isEqualTo(error);
+		assertThat(dictionary.term(error)).isSameAs(dictionary.intern("error"));
+		assertThat(dictionary.term(warn)).isEqualTo("warn");
+		assertThatThrownBy(() -> dictionary.term(2)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void stopGrowingWhenFull() {
+		TermDictionary dictionary = new TermDictionary(2);
+		RootNode root = QueryParser.parseQuery("a b c c", dictionary);
+		assertThat(root).isEqualTo(QueryParser.parseQuery("a b c c"));
+		assertThat(root.children().get(2).value()).isNotSameAs(root.children().get(3).value());
+		assertThat(dictionary.size()).isEqualTo(2);
+		assertThat(dictionary.id("c")).isEqualTo(TermDictionary.NO_ID);
+		assertThat(dictionary.intern("a")).isSameAs(root.children().get(0).value());
+	}
+
+	@Test
+	void internConcurrently() throws Exception {
+		TermDictionary dictionary = new TermDictionary(1_000);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<List<String>>> futures = new ArrayList<>();
+		try {
+			for (int t = 0; t < 4; t++) {
+				futures.add(executor.submit(() -> {
+					List<String> terms = new ArrayList<>();
+					for (int i = 0; i < 500; i++) {
+						terms.add(dictionary.intern("term" + i));
+					}
+					return terms;
+				}));
+			}
+			List<String> expected = futures.get(0).get();
+			for (Future<List<String>> future : futures) {
+				List<String> terms = future.get();
+				for (int i = 0; i < terms.size(); i++) {
+					assertThat(terms.get(i)).isSameAs(expected.get(i));
+					assertThat(dictionary.term(dictionary.id(terms.get(i)))).isSameAs(expected.get(i));
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+		assertThat(dictionary.size()).isEqualTo(500);
+	}
+
+}
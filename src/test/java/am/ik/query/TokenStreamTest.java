@@ -0,0 +1,45 @@
+package am.ik.query;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TokenStreamTest {
+
+	@Test
+	void growsBeyondInitialCapacity() {
+		TokenStream stream = new TokenStream(1);
+		for (int i = 0; i < 100; i++) {
+			stream.add(new Token(TokenType.KEYWORD, "k" + i));
+		}
+		assertThat(stream).hasSize(100);
+		assertThat(stream.get(0).value()).isEqualTo("k0");
+		assertThat(stream.get(99).value()).isEqualTo("k99");
+	}
+
+	@Test
+	void removeLast() {
+		TokenStream stream = QueryLexer.tokenize("hello world");
+		assertThat(stream.remove(stream.size() - 1)).isEqualTo(new Token(TokenType.KEYWORD, "world"));
+		assertThat(stream).containsExactly(new Token(TokenType.KEYWORD, "hello"), new Token(TokenType.WHITESPACE, " "));
+	}
+
+	@Test
+	void outOfBounds() {
+		TokenStream stream = new TokenStream();
+		assertThatThrownBy(() -> stream.get(0)).isInstanceOf(IndexOutOfBoundsException.class);
+	}
+
+	@Test
+	void copyOfList() {
+		List<Token> tokens = new LinkedList<>(QueryLexer.tokenize("hello (world)"));
+		TokenStream stream = TokenStream.copyOf(tokens);
+		assertThat(stream).isEqualTo(tokens);
+		assertThat(TokenStream.copyOf(stream)).isSameAs(stream);
+	}
+
+}
@@ -0,0 +1,135 @@
+package am.ik.query;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class Utf8QueryLexerTest {
+
+	@Test
+	void byteOffsets() {
+		byte[] input = "日本 -語(x)".getBytes(StandardCharsets.UTF_8);
+		Utf8QueryLexer lexer = new Utf8QueryLexer(input);
+		assertThat(lexer.advance()).isTrue();
+		assertThat(lexer.type()).isEqualTo(TokenType.KEYWORD);
+		assertThat(lexer.start()).isEqualTo(0);
+		assertThat(lexer.end()).isEqualTo(6);
+		assertThat(lexer.value()).isEqualTo("日本");
+		assertThat(lexer.advance()).isTrue();
+		assertThat(lexer.type()).isEqualTo(TokenType.WHITESPACE);
+		assertThat(lexer.advance()).isTrue();
+		assertThat(lexer.type()).isEqualTo(TokenType.EXCLUDE);
+		assertThat(lexer.value()).isEqualTo("語(x)");
+		assertThat(lexer.advance()).isFalse();
+	}
+
+	@Test
+	void fieldsAreSplitWhenLexed() {
+		Utf8QueryLexer lexer = new Utf8QueryLexer("東京=wörld".getBytes(StandardCharsets.UTF_8));
+		assertThat(lexer.advance()).isTrue();
+		assertThat(lexer.type()).isEqualTo(TokenType.FIELD);
+		assertThat(lexer.fieldName()).isEqualTo("東京");
+		assertThat(lexer.fieldValue()).isEqualTo("wörld");
+		assertThat(lexer.value()).isEqualTo("東京=wörld");
+		lexer = new Utf8QueryLexer("-東京=wörld -=x".getBytes(StandardCharsets.UTF_8));
+		assertThat(lexer.advance()).isTrue();
+		assertThat(lexer.type()).isEqualTo(TokenType.EXCLUDED_FIELD);
+		assertThat(lexer.fieldName()).isEqualTo("東京");
+		assertThat(lexer.fieldValue()).isEqualTo("wörld");
+		lexer.advance();
+		assertThat(lexer.advance()).isTrue();
+		assertThat(lexer.type()).isEqualTo(TokenType.EXCLUDE);
+	}
+
+	@Test
+	void directByteBuffer() {
+		byte[] bytes = "xxhello (wörld)".getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip().position(2);
+		RootNode node = QueryParser.parseQuery(buffer);
+		assertThat(buffer.position()).isEqualTo(2);
+		assertThat(QueryFixtures.render(node)).isEqualTo(QueryFixtures.render(QueryParser.parseQuery("hello (wörld)")));
+	}
+
+	@Test
+	void sameTreeAsStringPath() {
+		String[] alphabet = { "a", "b", "Or", "o", "r", "1", " ", "\t", "\u3000", "-", "\"", "(", ")", "=", "日", "本",
+				"é", "😀", "\u2028", "\u00a0" };
+		Random random = new Random(1234);
+		for (int n = 0; n < 20_000; n++) {
+			StringBuilder builder = new StringBuilder();
+			int length = random.nextInt(12);
+			for (int i = 0; i < length; i++) {
+				builder.append(alphabet[random.nextInt(alphabet.length)]);
+			}
+			String query = builder.toString();
+			assertThat(parse(query.getBytes(StandardCharsets.UTF_8))).as(query).isEqualTo(parse(query));
+		}
+	}
+
+	@Test
+	void unterminatedPhrasesMatchStringPath() {
+		String[] queries = { "\"", "a \"", "(\"", "\"a", "\"ab😀", "\"😀", "a \"b c", "\"a\" \"", "(a \"b)", "\"é",
+				"\"日本" };
+		for (String query : queries) {
+			assertThat(parse(query.getBytes(StandardCharsets.UTF_8))).as(query).isEqualTo(parse(query));
+			assertThat(parseLenient(query.getBytes(StandardCharsets.UTF_8))).as(query).isEqualTo(parseLenient(query));
+		}
+		assertThat(parse("\"ab😀".getBytes(StandardCharsets.UTF_8))).isEqualTo("(PHRASE:ab\uD83D )");
+		assertThat(parse("a \"".getBytes(StandardCharsets.UTF_8))).isEqualTo("error");
+		assertThat(parseLenient("a \"b😀".getBytes(StandardCharsets.UTF_8)))
+			.isEqualTo("(KEYWORD:a PHRASE:b😀 ) [UNTERMINATED_QUOTE]");
+		String[] alphabet = { "a", " ", "\"", "(", ")", "é", "😀", "\uD83D", "\uDE00" };
+		Random random = new Random(5);
+		for (int n = 0; n < 20_000; n++) {
+			String query = QueryFixtures.random(random, alphabet, 8);
+			assertThat(parse(query.getBytes(StandardCharsets.UTF_8))).as(query)
+				.isEqualTo(parse(new String(query.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8)));
+			assertThat(parseLenient(query.getBytes(StandardCharsets.UTF_8))).as(query)
+				.isEqualTo(parseLenient(new String(query.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8)));
+		}
+	}
+
+	@Test
+	void malformedInputMatchesDecodedString() {
+		byte[][] inputs = { { 'a', (byte) 0xc3, '(', 'b', ')' }, { (byte) 0xe0, (byte) 0x80, (byte) 0xa0, '-', 'x' },
+				{ 'x', '-', (byte) 0xed, (byte) 0xa0, (byte) 0x80 }, { (byte) 0xf0, (byte) 0x9f, ' ', 'o', 'r' },
+				{ (byte) 0xc0, (byte) 0xa0, 'a' } };
+		for (byte[] input : inputs) {
+			assertThat(parse(input)).isEqualTo(parse(new String(input, StandardCharsets.UTF_8)));
+		}
+	}
+
+	static String parse(byte[] input) {
+		return QueryFixtures.parse(() -> QueryParser.parseQuery(input));
+	}
+
+	static String parse(String input) {
+		return QueryFixtures.parse(() -> QueryParser.parseQuery(input));
+	}
+
+	static String parseLenient(byte[] input) {
+		return render(new QueryParser(new Utf8QueryLexer(input)).parseLenient());
+	}
+
+	static String parseLenient(String input) {
+		return render(QueryParser.parseLenientQuery(input));
+	}
+
+	/**
+	 * Renders the tree and the kinds of the diagnostics, whose offsets differ between
+	 * bytes and chars.
+	 */
+	static String render(ParseResult result) {
+		StringBuilder builder = new StringBuilder(QueryFixtures.render(result.root()));
+		if (!result.diagnostics().isEmpty()) {
+			builder.append(' ').append(result.diagnostics().stream().map(Diagnostic::kind).toList());
+		}
+		return builder.toString();
+	}
+
+}